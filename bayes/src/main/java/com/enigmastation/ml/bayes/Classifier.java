@@ -17,7 +17,11 @@
 package com.enigmastation.ml.bayes;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * This is the base interface for the Bayesian classifiers.
@@ -77,6 +81,37 @@ public interface Classifier {
      */
     Map<Serializable, Double> getClassificationProbabilities(Serializable source);
 
+    /**
+     * This classifies a batch of sources, as {@link #classify(Serializable)} would.
+     * Implementations may classify the sources in parallel.
+     *
+     * @param sources the source corpora for the classification operation
+     * @return the best-match classification of each source, in the order of the sources
+     */
+    default List<Serializable> classifyAll(Collection<? extends Serializable> sources) {
+        List<Serializable> classifications = new ArrayList<>(sources.size());
+        for (Serializable source : sources) {
+            classifications.add(classify(source));
+        }
+        return classifications;
+    }
+
+    /**
+     * This returns the raw classification data for a batch of sources, as
+     * {@link #getClassificationProbabilities(Serializable)} would. Implementations may
+     * process the sources in parallel.
+     *
+     * @param sources the source corpora for the classification operation
+     * @return the classification data of each source, in the order of the sources
+     */
+    default List<Map<Serializable, Double>> getClassificationProbabilitiesAll(Collection<? extends Serializable> sources) {
+        List<Map<Serializable, Double>> probabilities = new ArrayList<>(sources.size());
+        for (Serializable source : sources) {
+            probabilities.add(getClassificationProbabilities(source));
+        }
+        return probabilities;
+    }
+
     /**
      * This method trains the classifier.
      *
@@ -84,4 +119,28 @@ public interface Classifier {
      * @param classification The classification for which to train
      */
     void train(Serializable source, Serializable classification);
+
+    /**
+     * This method trains the classifier with every document, as {@link
+     * #train(Serializable, Serializable)} would. Implementations may train in parallel,
+     * and may not show the counts of a document until the whole batch is trained.
+     *
+     * @param documents the documents and their classifications
+     */
+    default void trainAll(Iterable<? extends TrainingDocument> documents) {
+        for (TrainingDocument document : documents) {
+            train(document.getSource(), document.getClassification());
+        }
+    }
+
+    /**
+     * This method trains the classifier with every document in the stream; see
+     * {@link #trainAll(Iterable)}.
+     *
+     * @param documents the documents and their classifications
+     */
+    default void trainAll(Stream<? extends TrainingDocument> documents) {
+        Stream<TrainingDocument> stream = documents.map(document -> document);
+        trainAll((Iterable<TrainingDocument>) stream::iterator);
+    }
 }
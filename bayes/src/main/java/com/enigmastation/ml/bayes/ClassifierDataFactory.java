@@ -16,11 +16,15 @@
 
 package com.enigmastation.ml.bayes;
 
+import com.enigmastation.ml.bayes.impl.MapFeatureStore;
+
 import java.io.Serializable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * This builds the storage a classifier keeps its model in: the number of documents trained
+ * into each category, and the counts of each feature in each category.
  */
 public interface ClassifierDataFactory {
     /**
@@ -39,6 +43,15 @@ public interface ClassifierDataFactory {
         return new ConcurrentHashMap<>();
     }
 
+    /**
+     * Builds the store a classifier counts its features in; by default, a store over the
+     * map from {@link #buildFeatures()}
+     * @return feature store
+     */
+    default FeatureStore buildFeatureStore() {
+        return new MapFeatureStore(buildFeatures());
+    }
+
     /**
      * Invalidates all cache contents, forcing reload if possible
      */
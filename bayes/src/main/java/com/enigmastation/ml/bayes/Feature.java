@@ -16,9 +16,13 @@
 
 package com.enigmastation.ml.bayes;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TODO: Needs to be done
@@ -33,12 +37,16 @@ public class Feature implements Serializable {
 
     private Map<Serializable, Integer> categories = new ConcurrentHashMap<>();
 
+    // the sum of the category counts, kept as they change; rebuilt when deserialized
+    private transient AtomicInteger total = new AtomicInteger();
+
     public Map<Serializable, Integer> getCategories() {
         return categories;
     }
 
     public void setCategories(Map<Serializable, Integer> categories) {
         this.categories = categories;
+        total.set(sum(categories));
     }
 
     public Object getFeature() {
@@ -53,16 +61,85 @@ public class Feature implements Serializable {
         return categories.getOrDefault(category, 0);
     }
 
+    /**
+     * The sum of this feature's counts over every category, as maintained by
+     * {@link #incrementCategoryCount(Serializable, int)} and {@link #setCategories(Map)};
+     * changes made directly to the map from {@link #getCategories()} are not tracked.
+     *
+     * @return the feature's total count
+     */
+    public int getTotal() {
+        return total.get();
+    }
+
     public Feature(Serializable feature) {
         this.feature=feature;
     }
 
+    /**
+     * Copies another feature's name and counts, its total included, so the copy can be
+     * updated without summing the counts again.
+     *
+     * @param other the feature to copy
+     */
+    public Feature(Feature other) {
+        this.feature = other.feature;
+        this.categories.putAll(other.categories);
+        this.total.set(other.total.get());
+    }
+
     /**
      * Increments the number of features for a given category
      *
      * @param category the category name
      */
     public void incrementCategoryCount(Serializable category) {
-        categories.put(category,categories.getOrDefault(category,0)+1);
+        incrementCategoryCount(category, 1);
+    }
+
+    /**
+     * Adds to the number of features for a given category; with the default concurrent
+     * map, concurrent increments are never lost.
+     *
+     * @param category the category name
+     * @param count    the number to add
+     */
+    public void incrementCategoryCount(Serializable category, int count) {
+        categories.merge(category, count, Integer::sum);
+        total.addAndGet(count);
+    }
+
+    /**
+     * Features are equal when they have the same name and counts, which is what lets a
+     * cache's conditional replace tell an unchanged entry from one updated meanwhile.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Feature)) {
+            return false;
+        }
+        Feature other = (Feature) o;
+        return Objects.equals(feature, other.feature) && categories.equals(other.categories);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(feature, categories);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        total = new AtomicInteger(sum(categories));
+    }
+
+    private static int sum(Map<Serializable, Integer> categories) {
+        int sum = 0;
+        for (Integer count : categories.values()) {
+            sum += count;
+        }
+        return sum;
     }
 }
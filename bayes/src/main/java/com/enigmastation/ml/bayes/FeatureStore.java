@@ -0,0 +1,148 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes;
+
+import java.io.Serializable;
+
+/**
+ * This holds the number of times each feature has been seen in each category, which is
+ * the bulk of a trained Bayesian model.
+ */
+public interface FeatureStore {
+    /**
+     * @param feature  the feature
+     * @param category the category
+     * @return the number of times the feature has been trained into the category
+     */
+    int featureCount(Serializable feature, Serializable category);
+
+    /**
+     * @param feature the feature
+     * @return the number of times the feature has been trained into any category
+     */
+    int featureTotal(Serializable feature);
+
+    /**
+     * Reads the feature's counts in several categories at once, which implementations
+     * can do with a single lookup of the feature.
+     *
+     * @param feature    the feature
+     * @param categories the categories to read
+     * @param counts     receives the count in categories[i] at counts[i]
+     * @return the number of times the feature has been trained into any category
+     */
+    default int featureCounts(Serializable feature, Serializable[] categories, int[] counts) {
+        for (int i = 0; i < categories.length; i++) {
+            counts[i] = featureCount(feature, categories[i]);
+        }
+        return featureTotal(feature);
+    }
+
+    /**
+     * Records one more occurrence of the feature in the category.
+     *
+     * @param feature  the feature
+     * @param category the category
+     */
+    void incrementFeature(Serializable feature, Serializable category);
+
+    /**
+     * Records several occurrences of the feature in the category at once; implementations
+     * should make this as cheap as a single increment.
+     *
+     * @param feature  the feature
+     * @param category the category
+     * @param count    the number of occurrences
+     */
+    default void incrementFeature(Serializable feature, Serializable category, int count) {
+        for (int i = 0; i < count; i++) {
+            incrementFeature(feature, category);
+        }
+    }
+
+    /**
+     * This bounds {@link #featureTotal(Serializable)}: it never goes down, other than on a
+     * clear, so it stays a bound after features are pruned. The default is the loosest
+     * bound there is.
+     *
+     * @return no less than the largest number of times any feature has been counted
+     */
+    default int maxFeatureTotal() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Visits every feature that has been counted, with its counts in the given categories.
+     * Features counted while the visit is under way may or may not be visited.
+     *
+     * @param categories the categories to report counts for
+     * @param visitor    receives each feature
+     * @throws UnsupportedOperationException if the store cannot enumerate its features
+     */
+    default void forEachFeature(Serializable[] categories, FeatureVisitor visitor) {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot enumerate its features");
+    }
+
+    /**
+     * @return the number of distinct features the store holds
+     * @throws UnsupportedOperationException if the store cannot count its features
+     */
+    default int size() {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot count its features");
+    }
+
+    /**
+     * Removes the least useful features - the ones counted least, and among those the ones
+     * counted longest ago - until at most the target number remain. A removed feature
+     * reads as never counted, and counting it again starts it over.
+     *
+     * @param target the number of features to keep
+     * @return the number of features removed
+     * @throws UnsupportedOperationException if the store cannot remove features
+     */
+    default int prune(int target) {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot remove features");
+    }
+
+    /**
+     * Tells whether the store supports {@link #size()} and {@link #prune(int)}, which is
+     * what a feature budget needs; asking costs nothing, unlike trying either.
+     *
+     * @return true if the store can count and remove its features
+     */
+    default boolean canPrune() {
+        return false;
+    }
+
+    /**
+     * Forgets every count.
+     */
+    void clear();
+
+    /**
+     * Receives the features of a store, one at a time.
+     */
+    interface FeatureVisitor {
+        /**
+         * @param feature the feature
+         * @param counts  the feature's count in categories[i] at counts[i]; only valid
+         *                during the call
+         * @param total   the number of times the feature has been counted in any category
+         */
+        void visit(Serializable feature, int[] counts, int total);
+    }
+}
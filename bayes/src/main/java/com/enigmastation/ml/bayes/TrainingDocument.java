@@ -0,0 +1,42 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes;
+
+import java.io.Serializable;
+
+/**
+ * A source text and the classification to train it into, for bulk training.
+ */
+public final class TrainingDocument implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Serializable source;
+    private final Serializable classification;
+
+    public TrainingDocument(Serializable source, Serializable classification) {
+        this.source = source;
+        this.classification = classification;
+    }
+
+    public Serializable getSource() {
+        return source;
+    }
+
+    public Serializable getClassification() {
+        return classification;
+    }
+}
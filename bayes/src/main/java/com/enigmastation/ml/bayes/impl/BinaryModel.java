@@ -0,0 +1,478 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+import com.enigmastation.ml.tokenizer.impl.HashingTokenizer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A trained model in its on-disk form, read in place from a memory-mapped file: opening
+ * one reads the header and category table, and the count matrix is only paged in as
+ * features are looked up, so a large model is usable at once and never copied onto the heap.
+ * <p>
+ * The format, version 2, big-endian, every section aligned to its element size:
+ * <pre>
+ * int     magic, "BAYS"
+ * int     version
+ * int     flags; bit 0 means the features are Integer buckets of a hashing tokenizer,
+ *         otherwise they are Strings
+ * int     k, the number of categories
+ * int     n, the number of features
+ * int     capacity, the number of hash slots, a power of two
+ * int     the number of documents trained into any category
+ * int     m, the length of the category table
+ * long    the sequence number of the last {@link TrainingJournal} record the model holds
+ * int[k]  the number of documents trained into each category
+ * byte[m] the category table: a Java-serialized Serializable[k]
+ * int[capacity] the hash slots: a feature's index plus one, or zero; linear probing
+ * int[n]  each feature's hash: its String's hashCode, or its bucket
+ * long[n+1] the offset of each feature's UTF-8 text in the term section
+ * int[n*(k+1)] each feature's row of counts: its total, then its count in each category
+ * byte[]  the term section
+ * </pre>
+ * Version 1 lacks the journal sequence number, and is still read, as a model that holds
+ * no journal records.
+ */
+public final class BinaryModel implements ModelView {
+    static final int MAGIC = 0x42415953;
+    static final int VERSION = 2;
+    static final int HASHED = 1;
+
+    private static final int HEADER = 40;
+    private static final int VERSION_1_HEADER = 32;
+    private static final int CHUNK_BITS = 30;
+
+    private final ByteBuffer[] chunks;
+    private final boolean bucketed;
+    private final Serializable[] categories;
+    private final int[] categoryCounts;
+    private final int totalCount;
+    private final long checkpoint;
+    private final int size;
+    private final int mask;
+    private final long slots;
+    private final long hashes;
+    private final long offsets;
+    private final long counts;
+    private final long terms;
+    private final int width;
+    // found on first use, which reads the whole count matrix; -1 until then
+    private volatile int maxFeatureTotal = -1;
+
+    private BinaryModel(ByteBuffer[] chunks) throws IOException {
+        this.chunks = chunks;
+        if (getInt(0) != MAGIC) {
+            throw new IOException("not a model file");
+        }
+        int version = getInt(4);
+        if (version != VERSION && version != 1) {
+            throw new IOException("unsupported model version " + version);
+        }
+        int header = version == 1 ? VERSION_1_HEADER : HEADER;
+        checkpoint = version == 1 ? 0 : getLong(32);
+        bucketed = (getInt(8) & HASHED) != 0;
+        int k = getInt(12);
+        size = getInt(16);
+        int capacity = getInt(20);
+        totalCount = getInt(24);
+        int m = getInt(28);
+        categoryCounts = new int[k];
+        for (int i = 0; i < k; i++) {
+            categoryCounts[i] = getInt(header + 4L * i);
+        }
+        long table = header + 4L * k;
+        byte[] serialized = new byte[m];
+        for (int i = 0; i < m; i++) {
+            serialized[i] = get(table + i);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            categories = (Serializable[]) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown category class: " + e.getMessage(), e);
+        }
+        mask = capacity - 1;
+        width = k + 1;
+        slots = align(table + m);
+        hashes = slots + 4L * capacity;
+        offsets = align(hashes + 4L * size);
+        counts = offsets + 8L * (size + 1);
+        terms = counts + 4L * size * width;
+    }
+
+    /**
+     * Maps a model file. The mapping lives as long as the model does; replacing the file
+     * with {@link #write(Path, ModelSnapshot, long)} does not disturb it.
+     *
+     * @param path the model file
+     * @return the model
+     * @throws IOException if the file cannot be read, or is not a model of a known version
+     */
+    public static BinaryModel open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < VERSION_1_HEADER) {
+                throw new IOException("not a model file");
+            }
+            long chunk = 1L << CHUNK_BITS;
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((length + chunk - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = i * chunk;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunk, length - start));
+                chunks[i] = mapped;
+            }
+            return new BinaryModel(chunks);
+        }
+    }
+
+    /**
+     * Writes a snapshot as a model file: to a temporary file next to the target, forced
+     * to disk, then renamed over the target in one atomic step, so that the target is
+     * always either the old model or the new one. The directory is forced as well, where the
+     * platform allows it, so the new model is durable when this returns.
+     *
+     * @param path       the model file
+     * @param snapshot   the model to write
+     * @param checkpoint the sequence number of the last journal record in the snapshot
+     * @throws IOException if the file cannot be written
+     */
+    static void write(Path path, ModelSnapshot snapshot, long checkpoint) throws IOException {
+        Serializable[] categories = snapshot.categories();
+        List<Serializable> features = new ArrayList<>(snapshot.size());
+        List<int[]> rows = new ArrayList<>(snapshot.size());
+        snapshot.forEachFeature((feature, featureCounts, total) -> {
+            if (snapshot.isBucketed() ? !(feature instanceof Integer) : !(feature instanceof String)) {
+                throw new IllegalArgumentException("features must be Strings or hashed Integers, not " + feature);
+            }
+            int[] row = new int[categories.length + 1];
+            row[0] = total;
+            System.arraycopy(featureCounts, 0, row, 1, categories.length);
+            features.add(feature);
+            rows.add(row);
+        });
+        int n = features.size();
+        int capacity = Integer.highestOneBit(Math.max(4, n * 2 - 1)) * 2;
+        int[] slotTable = new int[capacity];
+        int[] hashTable = new int[n];
+        byte[][] text = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            Serializable feature = features.get(i);
+            hashTable[i] = feature.hashCode();
+            text[i] = snapshot.isBucketed() ? new byte[0] : ((String) feature).getBytes(StandardCharsets.UTF_8);
+            int slot = spread(hashTable[i]) & (capacity - 1);
+            while (slotTable[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slotTable[slot] = i + 1;
+        }
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(table)) {
+            out.writeObject(categories);
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.isBucketed() ? HASHED : 0);
+                out.writeInt(categories.length);
+                out.writeInt(n);
+                out.writeInt(capacity);
+                out.writeInt(snapshot.totalCount());
+                out.writeInt(table.size());
+                out.writeLong(checkpoint);
+                for (int i = 0; i < categories.length; i++) {
+                    out.writeInt(snapshot.categoryCount(i));
+                }
+                table.writeTo(out);
+                long position = HEADER + 4L * categories.length + table.size();
+                pad(out, position);
+                position = align(position) + 4L * capacity + 4L * n;
+                for (int slot : slotTable) {
+                    out.writeInt(slot);
+                }
+                for (int hash : hashTable) {
+                    out.writeInt(hash);
+                }
+                pad(out, position);
+                long offset = 0;
+                for (byte[] bytes : text) {
+                    out.writeLong(offset);
+                    offset += bytes.length;
+                }
+                out.writeLong(offset);
+                for (int[] row : rows) {
+                    for (int count : row) {
+                        out.writeInt(count);
+                    }
+                }
+                for (byte[] bytes : text) {
+                    out.write(bytes);
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // the rename lives in the directory, which has to reach the disk before the
+            // journal segments the new model replaces can be dropped; on platforms that
+            // cannot open a directory, Windows among them, the rename has to do on its own
+            try (FileChannel directory = FileChannel.open(parent, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                // best effort: the model is in place whether or not this worked
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * @return whether the features are the buckets of a hashing tokenizer
+     */
+    public boolean isBucketed() {
+        return bucketed;
+    }
+
+    /**
+     * @return the sequence number of the last {@link TrainingJournal} record the model
+     * holds; records after it have to be replayed on top of it
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return the number of features in the model
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Serializable[] categories() {
+        return categories;
+    }
+
+    @Override
+    public int categoryCount(int index) {
+        return categoryCounts[index];
+    }
+
+    @Override
+    public int totalCount() {
+        return totalCount;
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, int[] counts) {
+        int index = find(feature);
+        if (index < 0) {
+            Arrays.fill(counts, 0, categories.length, 0);
+            return 0;
+        }
+        long row = this.counts + 4L * index * width;
+        for (int i = 0; i < categories.length; i++) {
+            counts[i] = getInt(row + 4L * (i + 1));
+        }
+        return getInt(row);
+    }
+
+    /**
+     * This reads every feature's total the first time it is called, so it pages in the
+     * count matrix once; loading a model does not.
+     */
+    @Override
+    public int maxFeatureTotal() {
+        int max = maxFeatureTotal;
+        if (max < 0) {
+            max = 0;
+            for (int index = 0; index < size; index++) {
+                max = Math.max(max, count(index, -1));
+            }
+            maxFeatureTotal = max;
+        }
+        return max;
+    }
+
+    /**
+     * @param category a category
+     * @return the category's position in {@link #categories()}, or -1
+     */
+    int column(Serializable category) {
+        for (int i = 0; i < categories.length; i++) {
+            if (categories[i].equals(category)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param feature a feature
+     * @return the feature's index, or -1 if it is not in the model
+     */
+    int find(Serializable feature) {
+        int hash;
+        if (bucketed) {
+            if (!(feature instanceof Integer)) {
+                return -1;
+            }
+            hash = HashingTokenizer.bucket((Integer) feature);
+        } else {
+            if (!(feature instanceof String)) {
+                return -1;
+            }
+            hash = feature.hashCode();
+        }
+        int slot = spread(hash) & mask;
+        int entry;
+        while ((entry = getInt(slots + 4L * slot)) != 0) {
+            int index = entry - 1;
+            if (getInt(hashes + 4L * index) == hash && (bucketed || matches(index, (String) feature))) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param index  a feature's index
+     * @param column a category's position in {@link #categories()}, or -1 for the total
+     * @return the feature's count in the category
+     */
+    int count(int index, int column) {
+        return getInt(counts + 4L * ((long) index * width + column + 1));
+    }
+
+    /**
+     * @param index a feature's index
+     * @return the feature
+     */
+    Serializable feature(int index) {
+        if (bucketed) {
+            return getInt(hashes + 4L * index);
+        }
+        long start = terms + getLong(offsets + 8L * index);
+        byte[] bytes = new byte[(int) (terms + getLong(offsets + 8L * (index + 1)) - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Visits every feature in the model, with its counts in the given categories.
+     *
+     * @param categories the categories to report counts for
+     * @param visitor    receives each feature
+     */
+    void forEachFeature(Serializable[] categories, FeatureStore.FeatureVisitor visitor) {
+        int[] columns = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            columns[i] = column(categories[i]);
+        }
+        int[] row = new int[categories.length];
+        for (int index = 0; index < size; index++) {
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = columns[i] < 0 ? 0 : count(index, columns[i]);
+            }
+            visitor.visit(feature(index), row, count(index, -1));
+        }
+    }
+
+    /* compares the feature's UTF-8 text with the key without decoding it into a String */
+    private boolean matches(int index, String key) {
+        long position = terms + getLong(offsets + 8L * index);
+        long end = terms + getLong(offsets + 8L * (index + 1));
+        int i = 0;
+        while (position < end) {
+            int b = get(position++) & 0xff;
+            int c;
+            if (b < 0x80) {
+                c = b;
+            } else if (b < 0xe0) {
+                c = (b & 0x1f) << 6 | (get(position++) & 0x3f);
+            } else if (b < 0xf0) {
+                c = (b & 0x0f) << 12 | (get(position++) & 0x3f) << 6 | (get(position++) & 0x3f);
+            } else {
+                c = (b & 0x07) << 18 | (get(position++) & 0x3f) << 12 | (get(position++) & 0x3f) << 6
+                        | (get(position++) & 0x3f);
+                if (i >= key.length() || key.charAt(i++) != Character.highSurrogate(c)) {
+                    return false;
+                }
+                c = Character.lowSurrogate(c);
+            }
+            if (i >= key.length() || key.charAt(i++) != c) {
+                return false;
+            }
+        }
+        return i == key.length();
+    }
+
+    private byte get(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].get((int) (position & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    /* ints and longs are aligned, so never straddle two chunks */
+    private int getInt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    private long getLong(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & ((1 << CHUNK_BITS) - 1)));
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /* DataOutputStream's own count stops at 2GB, so the writer keeps track of the position */
+    private static void pad(DataOutputStream out, long position) throws IOException {
+        for (long i = position; i < align(position); i++) {
+            out.writeByte(0);
+        }
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
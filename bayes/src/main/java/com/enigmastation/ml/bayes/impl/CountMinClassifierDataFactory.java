@@ -0,0 +1,49 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
+import com.enigmastation.ml.bayes.FeatureStore;
+
+/**
+ * This counts features approximately, in a {@link CountMinFeatureStore} of fixed size.
+ */
+public class CountMinClassifierDataFactory implements ClassifierDataFactory {
+    private final double epsilon;
+    private final double delta;
+
+    /**
+     * @param epsilon the error of a count, as a fraction of the total of all counts in its category
+     * @param delta   the probability that a count is off by more than that
+     */
+    public CountMinClassifierDataFactory(double epsilon, double delta) {
+        this.epsilon = epsilon;
+        this.delta = delta;
+    }
+
+    @Override
+    public FeatureStore buildFeatureStore() {
+        return new CountMinFeatureStore(epsilon, delta);
+    }
+
+    /**
+     * Nothing is cached, so there is nothing to invalidate.
+     */
+    @Override
+    public void clear() {
+    }
+}
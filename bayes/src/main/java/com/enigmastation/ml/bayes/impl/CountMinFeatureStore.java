@@ -0,0 +1,219 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This approximates feature counts with one count-min sketch per category, plus one for
+ * the totals, so its memory is fixed by the accuracy asked for, however many distinct
+ * features it sees, and a lookup is a few hashes and array reads.
+ * <p>
+ * A sketch is depth rows of width counters. A feature adds to one counter in each row,
+ * and reads as the smallest of them. With width e/&epsilon; and depth ln(1/&delta;), a
+ * count read back is never less than the true count, and exceeds it by more than
+ * &epsilon; times the total of all counts in the sketch with a probability of at most
+ * &delta;. Counts are added with conservative update, which only raises a feature's
+ * counters as far as its new estimate, and overestimates a good deal less in practice.
+ * <p>
+ * Conservative update reads a feature's counters and then raises them, so two updates
+ * of the same feature must not interleave: an update locks one of a sketch's stripes,
+ * picked by the feature's hash, and raises each counter with a compare-and-set that
+ * only ever moves it up, which is all that updates of other features sharing the
+ * counter need. Reads never lock. Features cannot be listed, so models in this store
+ * cannot be snapshotted or saved.
+ */
+public class CountMinFeatureStore implements FeatureStore {
+    private final double epsilon;
+    private final double delta;
+    private final int width;
+    private final int depth;
+    private final Map<Serializable, Sketch> sketches = new ConcurrentHashMap<>();
+    private volatile Sketch totals;
+    private final AtomicInteger maxTotal = new AtomicInteger();
+
+    /**
+     * @param epsilon the error of a count, as a fraction of the total of all counts in its category
+     * @param delta   the probability that a count is off by more than that
+     */
+    public CountMinFeatureStore(double epsilon, double delta) {
+        if (epsilon <= 0 || epsilon >= 1) {
+            throw new IllegalArgumentException("epsilon must be between 0 and 1: " + epsilon);
+        }
+        if (delta <= 0 || delta >= 1) {
+            throw new IllegalArgumentException("delta must be between 0 and 1: " + delta);
+        }
+        this.epsilon = epsilon;
+        this.delta = delta;
+        // a power of two at least e/epsilon wide, so a column is a mask rather than a division
+        int columns = (int) Math.ceil(Math.E / epsilon);
+        this.width = columns <= 1 ? 1 : Integer.highestOneBit(columns - 1) << 1;
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        this.totals = new Sketch(width, depth);
+    }
+
+    public double getEpsilon() {
+        return epsilon;
+    }
+
+    public double getDelta() {
+        return delta;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the bytes of counters held, which grows with the number of categories only
+     */
+    public long getCounterBytes() {
+        return 4L * width * depth * (sketches.size() + 1);
+    }
+
+    @Override
+    public int featureCount(Serializable feature, Serializable category) {
+        Sketch sketch = sketches.get(category);
+        return sketch == null ? 0 : sketch.estimate(hash(feature));
+    }
+
+    @Override
+    public int featureTotal(Serializable feature) {
+        return totals.estimate(hash(feature));
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, Serializable[] categories, int[] counts) {
+        long hash = hash(feature);
+        for (int i = 0; i < categories.length; i++) {
+            Sketch sketch = sketches.get(categories[i]);
+            counts[i] = sketch == null ? 0 : sketch.estimate(hash);
+        }
+        return totals.estimate(hash);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category) {
+        incrementFeature(feature, category, 1);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category, int count) {
+        long hash = hash(feature);
+        sketches.computeIfAbsent(category, c -> new Sketch(width, depth)).add(hash, count);
+        int total = totals.add(hash, count);
+        if (total > maxTotal.get()) {
+            maxTotal.accumulateAndGet(total, Math::max);
+        }
+    }
+
+    /**
+     * This bounds the estimated totals, which are what {@link #featureTotal(Serializable)}
+     * reads.
+     */
+    @Override
+    public int maxFeatureTotal() {
+        return maxTotal.get();
+    }
+
+    @Override
+    public void clear() {
+        sketches.clear();
+        totals = new Sketch(width, depth);
+        maxTotal.set(0);
+    }
+
+    /*
+     * two 32-bit hashes, from which every row's column is derived: for text, from a 64-bit
+     * hash of its characters, so that features whose hashCodes collide still land apart
+     */
+    private static long hash(Serializable feature) {
+        long h;
+        if (feature instanceof CharSequence) {
+            CharSequence text = (CharSequence) feature;
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < text.length(); i++) {
+                h = (h ^ text.charAt(i)) * 0x100000001b3L;
+            }
+        } else {
+            h = feature.hashCode();
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    private static final class Sketch {
+        // updates lock one of 2^STRIPE_BITS stripes, picked by the top bits of the hash
+        private static final int STRIPE_BITS = 6;
+        private static final int STRIPES = 1 << STRIPE_BITS;
+        private final AtomicIntegerArray counters;
+        private final Object[] stripes = new Object[STRIPES];
+        private final int width;
+        private final int depth;
+
+        Sketch(int width, int depth) {
+            this.counters = new AtomicIntegerArray(width * depth);
+            this.width = width;
+            this.depth = depth;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Object();
+            }
+        }
+
+        /* the counter for the hash in the row: the rows' hash functions are h1 + row * h2 */
+        private int cell(long hash, int row) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            return row * width + ((h1 + row * h2) & (width - 1));
+        }
+
+        int estimate(long hash) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, counters.get(cell(hash, row)));
+            }
+            return min;
+        }
+
+        /* returns the hash's new estimate */
+        int add(long hash, int count) {
+            synchronized (stripes[(int) (hash >>> (64 - STRIPE_BITS))]) {
+                int target = estimate(hash) + count;
+                for (int row = 0; row < depth; row++) {
+                    int cell = cell(hash, row);
+                    // another feature's update may raise the counter meanwhile, never lower it
+                    int current = counters.get(cell);
+                    while (current < target && !counters.compareAndSet(cell, current, target)) {
+                        current = counters.get(cell);
+                    }
+                }
+                return target;
+            }
+        }
+    }
+}
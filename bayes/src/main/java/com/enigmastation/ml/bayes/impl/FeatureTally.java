@@ -0,0 +1,191 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * One training worker's private counts, kept in primitive arrays until they are merged
+ * into the model: an open-addressing table with a row of per-category counts for each
+ * feature, plus the number of documents seen in each category. It is not thread-safe.
+ */
+final class FeatureTally {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<Serializable, Integer> ordinals = new HashMap<>();
+    private Serializable[] categories = new Serializable[4];
+    private int[] documents = new int[4];
+
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private int width = 4;
+    private int[] counts = new int[INITIAL_CAPACITY * width];
+    private int size;
+    // set while a thread's reusable tally is counting a document
+    boolean busy;
+
+    /**
+     * Counts one document in the category.
+     *
+     * @param category the document's category
+     * @return the category's ordinal, for {@link #add(Serializable, int)}
+     */
+    int document(Serializable category) {
+        Integer ordinal = ordinals.get(category);
+        if (ordinal == null) {
+            ordinal = ordinals.size();
+            ordinals.put(category, ordinal);
+            if (ordinal == categories.length) {
+                categories = Arrays.copyOf(categories, ordinal * 2);
+                documents = Arrays.copyOf(documents, ordinal * 2);
+            }
+            categories[ordinal] = category;
+            if (ordinal >= width) {
+                resize(keys.length, ordinal * 2);
+            }
+        }
+        documents[ordinal]++;
+        return ordinal;
+    }
+
+    /**
+     * Counts one occurrence of the feature in the category.
+     *
+     * @param feature the feature
+     * @param ordinal the category's ordinal, from {@link #document(Serializable)}
+     */
+    void add(Serializable feature, int ordinal) {
+        int slot = find(feature);
+        if (keys[slot] == null) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2, width);
+                slot = find(feature);
+            }
+            keys[slot] = feature;
+            size++;
+        }
+        counts[slot * width + ordinal]++;
+    }
+
+    /**
+     * @return the number of distinct features counted since the last merge
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Appends the counts to a journal, one event per category.
+     *
+     * @param journal the journal
+     */
+    void appendTo(TrainingJournal journal) {
+        for (int ordinal = 0; ordinal < ordinals.size(); ordinal++) {
+            Map<Serializable, int[]> features = new HashMap<>();
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != null && counts[slot * width + ordinal] != 0) {
+                    features.put((Serializable) keys[slot], new int[]{counts[slot * width + ordinal]});
+                }
+            }
+            if (documents[ordinal] != 0 || !features.isEmpty()) {
+                journal.append(categories[ordinal], documents[ordinal], features);
+            }
+        }
+    }
+
+    /**
+     * Adds every count to the store, one increment per feature and category, hands the
+     * document counts to the consumer, and starts over.
+     *
+     * @param store     the store to merge the feature counts into
+     * @param documents receives each category and the number of documents counted in it
+     */
+    void mergeInto(FeatureStore store, ObjIntConsumer<Serializable> documents) {
+        int categoryCount = ordinals.size();
+        for (int slot = 0; slot < keys.length; slot++) {
+            Serializable feature = (Serializable) keys[slot];
+            if (feature != null) {
+                int row = slot * width;
+                for (int ordinal = 0; ordinal < categoryCount; ordinal++) {
+                    if (counts[row + ordinal] != 0) {
+                        store.incrementFeature(feature, categories[ordinal], counts[row + ordinal]);
+                    }
+                }
+            }
+        }
+        for (int ordinal = 0; ordinal < categoryCount; ordinal++) {
+            if (this.documents[ordinal] != 0) {
+                documents.accept(categories[ordinal], this.documents[ordinal]);
+            }
+        }
+        Arrays.fill(keys, null);
+        Arrays.fill(counts, 0);
+        Arrays.fill(this.documents, 0);
+        size = 0;
+    }
+
+    /**
+     * Forgets everything counted since the last merge, and the categories too, and gives
+     * back the room a large document grew the table to, so that merging the next small
+     * document costs only as much as its own features.
+     */
+    void clear() {
+        ordinals.clear();
+        Arrays.fill(categories, null);
+        if (keys.length > INITIAL_CAPACITY) {
+            keys = new Object[INITIAL_CAPACITY];
+            counts = new int[INITIAL_CAPACITY * width];
+        } else if (size > 0) {
+            Arrays.fill(keys, null);
+            Arrays.fill(counts, 0);
+        }
+        Arrays.fill(documents, 0);
+        size = 0;
+    }
+
+    private int find(Object key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        int mask = keys.length - 1;
+        int slot = (h ^ (h >>> 16)) & mask;
+        Object candidate;
+        while ((candidate = keys[slot]) != null && !candidate.equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity, int width) {
+        Object[] oldKeys = keys;
+        int[] oldCounts = counts;
+        int oldWidth = this.width;
+        keys = new Object[capacity];
+        counts = new int[capacity * width];
+        this.width = width;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != null) {
+                int target = find(oldKeys[slot]);
+                keys[target] = oldKeys[slot];
+                System.arraycopy(oldCounts, slot * oldWidth, counts, target * width, oldWidth);
+            }
+        }
+    }
+}
@@ -16,15 +16,16 @@
 
 package com.enigmastation.ml.bayes.impl;
 
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
 import com.enigmastation.ml.bayes.FisherClassifier;
 import com.enigmastation.ml.bayes.annotations.BayesClassifier;
 import com.enigmastation.ml.bayes.annotations.FisherBayesClassifier;
+import com.enigmastation.ml.tokenizer.Tokenizer;
 
 import java.io.Serializable;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.IntStream;
 
 /**
  * This is a bayesian classifier that uses the Fisher method. See https://en.wikipedia.org/wiki/Fisher_information
@@ -34,6 +35,19 @@ import java.util.stream.IntStream;
 @FisherBayesClassifier
 public class FisherClassifierImpl extends SimpleClassifierImpl implements FisherClassifier {
     private Map<Serializable, Double> minimums = new ConcurrentHashMap<>();
+    private volatile int earlyTerminationBlockSize;
+
+    public FisherClassifierImpl() {
+        super();
+    }
+
+    public FisherClassifierImpl(Tokenizer tokenizer) {
+        super(tokenizer);
+    }
+
+    public FisherClassifierImpl(Tokenizer tokenizer, ClassifierDataFactory dataFactory) {
+        super(tokenizer, dataFactory);
+    }
 
     /**
      * This accesses the current minimum strength for the category. If the probability of a
@@ -63,6 +77,27 @@ public class FisherClassifierImpl extends SimpleClassifierImpl implements Fisher
         minimums.put(category, strength);
     }
 
+    public int getEarlyTerminationBlockSize() {
+        return earlyTerminationBlockSize;
+    }
+
+    /**
+     * This makes classification score a document a block of features at a time, and stop
+     * as soon as the winner and its minimum are settled, dropping categories that can no
+     * longer win on the way. The bounds are tightest against a published snapshot, which
+     * knows its largest feature count. The classification is always the one full scoring
+     * gives; only the amount of work differs.
+     *
+     * @param blockSize the number of features between checks, or 0 to always score
+     *                  every category in full, the default
+     */
+    public void setEarlyTerminationBlockSize(int blockSize) {
+        if (blockSize < 0) {
+            throw new IllegalArgumentException("blockSize must not be negative: " + blockSize);
+        }
+        this.earlyTerminationBlockSize = blockSize;
+    }
+
     @Override
     protected double featureProb(Serializable feature, Serializable category) {
         double clf = super.featureProb(feature, category);
@@ -79,27 +114,16 @@ public class FisherClassifierImpl extends SimpleClassifierImpl implements Fisher
         return clf / frequencySum;
     }
 
-    double fisherProbability(Serializable source, Serializable category) {
-        final double[] p = {1.0};
-        List<Serializable> features = getFeatures(source);
-        features
-                .stream()
-                .mapToDouble(f -> weightedProb(f, category))
-                .forEach(w -> p[0] *= w);
-        double fisherScore = -2.0 * Math.log(p[0]);
-        return invChi(fisherScore, features.size() * 2.0);
+    @Override
+    boolean normalizesFeatureProbabilities() {
+        return true;
     }
 
-    private double invChi(double chi, double df) {
-        double m = chi / 2.0;
-        final double[] sum = {Math.exp(-m)};
-        final double[] term = {sum[0]};
-        IntStream.range(1, (int) (df / 2))
-                .forEach(i -> {
-                    term[0] *= m / i;
-                    sum[0] += term[0];
-                });
-        return Math.min(sum[0], 1.0);
+    double fisherProbability(Serializable source, Serializable category) {
+        ModelView model = view(category);
+        double[] probabilities = new double[model.categories().length];
+        ScoringEngine.fisherProbabilities(model, features(source), probabilities);
+        return probabilities[Arrays.asList(model.categories()).indexOf(category)];
     }
 
     /**
@@ -112,16 +136,33 @@ public class FisherClassifierImpl extends SimpleClassifierImpl implements Fisher
      */
     @Override
     public Serializable classify(Serializable source, Serializable defaultClassification) {
-        Serializable[] best = {defaultClassification};
-        double[] max = {0.0};
-
-        getCategories().forEach(c -> {
-            double p = fisherProbability(source, c);
-            if (p > getMinimum(c) && p > max[0]) {
-                best[0] = c;
-                max[0] = p;
+        return classify(view(null), source, defaultClassification);
+    }
+
+    @Override
+    Serializable classify(ModelView model, Serializable source, Serializable defaultClassification) {
+        Serializable[] categories = model.categories();
+        int blockSize = earlyTerminationBlockSize;
+        if (blockSize > 0) {
+            double[] minimums = new double[categories.length];
+            for (int i = 0; i < categories.length; i++) {
+                minimums[i] = getMinimum(categories[i]);
             }
-        });
-        return best[0];
+            int best = ScoringEngine.fisherBest(model, features(source), minimums, blockSize);
+            return best < 0 ? defaultClassification : categories[best];
+        }
+        double[] probabilities = new double[categories.length];
+        ScoringEngine.fisherProbabilities(model, features(source), probabilities);
+        Serializable best = defaultClassification;
+        double max = 0.0;
+
+        for (int i = 0; i < categories.length; i++) {
+            double p = probabilities[i];
+            if (p > getMinimum(categories[i]) && p > max) {
+                best = categories[i];
+                max = p;
+            }
+        }
+        return best;
     }
 }
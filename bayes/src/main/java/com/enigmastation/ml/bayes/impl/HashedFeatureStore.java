@@ -0,0 +1,121 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+import com.enigmastation.ml.tokenizer.impl.HashingTokenizer;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This counts the Integer features of a {@link HashingTokenizer} in one fixed-size
+ * primitive table per category, so the model never grows past
+ * categories &times; dimension counts, however much it is trained.
+ * <p>
+ * Bayesian counts have to stay non-negative, so the sign a signed HashingTokenizer
+ * attaches to a feature is dropped here and only its bucket is counted.
+ */
+public class HashedFeatureStore implements FeatureStore {
+    private final int dimension;
+    private final Map<Serializable, AtomicIntegerArray> counts = new ConcurrentHashMap<>();
+    private volatile AtomicIntegerArray totals;
+    private final AtomicInteger maxTotal = new AtomicInteger();
+
+    public HashedFeatureStore(int dimension) {
+        this.dimension = dimension;
+        this.totals = new AtomicIntegerArray(dimension);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public int featureCount(Serializable feature, Serializable category) {
+        AtomicIntegerArray table = counts.get(category);
+        return table == null ? 0 : table.get(bucket(feature));
+    }
+
+    @Override
+    public int featureTotal(Serializable feature) {
+        return totals.get(bucket(feature));
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, Serializable[] categories, int[] counts) {
+        int bucket = bucket(feature);
+        for (int i = 0; i < categories.length; i++) {
+            AtomicIntegerArray table = this.counts.get(categories[i]);
+            counts[i] = table == null ? 0 : table.get(bucket);
+        }
+        return totals.get(bucket);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category) {
+        incrementFeature(feature, category, 1);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category, int count) {
+        int bucket = bucket(feature);
+        counts.computeIfAbsent(category, c -> new AtomicIntegerArray(dimension)).addAndGet(bucket, count);
+        int total = totals.addAndGet(bucket, count);
+        if (total > maxTotal.get()) {
+            maxTotal.accumulateAndGet(total, Math::max);
+        }
+    }
+
+    @Override
+    public int maxFeatureTotal() {
+        return maxTotal.get();
+    }
+
+    /**
+     * This visits each non-empty bucket as a feature of its own, the Integer bucket number;
+     * that is the feature every feature hashed into the bucket shares.
+     */
+    @Override
+    public void forEachFeature(Serializable[] categories, FeatureVisitor visitor) {
+        AtomicIntegerArray totals = this.totals;
+        int[] counts = new int[categories.length];
+        for (int bucket = 0; bucket < dimension; bucket++) {
+            int total = totals.get(bucket);
+            if (total != 0) {
+                visitor.visit(bucket, counts, featureCounts(bucket, categories, counts));
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        counts.clear();
+        totals = new AtomicIntegerArray(dimension);
+        maxTotal.set(0);
+    }
+
+    private int bucket(Serializable feature) {
+        if (!(feature instanceof Integer)) {
+            throw new IllegalArgumentException("hashed features are Integers, not " + feature);
+        }
+        return HashingTokenizer.bucket((Integer) feature) & (dimension - 1);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
+import com.enigmastation.ml.bayes.FeatureStore;
+
+/**
+ * This keeps the model on the Java heap, in primitive tables: a {@link
+ * PrimitiveFeatureStore}, or a fixed-size {@link HashedFeatureStore} when given the
+ * dimension of a {@link com.enigmastation.ml.tokenizer.impl.HashingTokenizer}. It is what
+ * the classifiers use unless they are given another factory.
+ */
+public class HeapClassifierDataFactory implements ClassifierDataFactory {
+    private final int dimension;
+
+    public HeapClassifierDataFactory() {
+        this(0);
+    }
+
+    /**
+     * @param dimension the number of buckets of the hashing tokenizer in use, or 0 if the
+     *                  features are not hashed
+     */
+    public HeapClassifierDataFactory(int dimension) {
+        this.dimension = dimension;
+    }
+
+    @Override
+    public FeatureStore buildFeatureStore() {
+        return dimension > 0 ? new HashedFeatureStore(dimension) : new PrimitiveFeatureStore();
+    }
+
+    /**
+     * Nothing is cached, so there is nothing to invalidate.
+     */
+    @Override
+    public void clear() {
+    }
+}
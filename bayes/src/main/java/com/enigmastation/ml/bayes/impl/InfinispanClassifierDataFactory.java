@@ -0,0 +1,130 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
+import com.enigmastation.ml.bayes.Feature;
+import com.enigmastation.ml.bayes.FeatureStore;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.stats.Stats;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * This keeps the model in the "categories" and "features" caches of an embedded
+ * Infinispan cache manager - by default the local-mode configuration in
+ * bayes-cache.xml, which writes behind to a single-file store, bounds the features held
+ * in memory with passivation, and keeps statistics. A model built this way survives a
+ * restart, as long as the factory is closed before the process ends, so that pending
+ * writes are flushed and the entries still in memory are passivated.
+ * <p>
+ * On Java 9 and later, Infinispan's marshaller needs java.base's java.io, java.lang,
+ * java.util, java.util.concurrent, java.util.concurrent.atomic and
+ * java.util.concurrent.locks packages opened to it with --add-opens.
+ */
+public class InfinispanClassifierDataFactory implements ClassifierDataFactory, Closeable {
+    public static final String CATEGORIES = "categories";
+    public static final String FEATURES = "features";
+
+    private final EmbeddedCacheManager cacheManager;
+    private final boolean owned;
+
+    public InfinispanClassifierDataFactory() {
+        this("bayes-cache.xml");
+    }
+
+    /**
+     * @param configuration an Infinispan configuration file, on the classpath or the file
+     *                      system, that declares the "categories" and "features" caches
+     */
+    public InfinispanClassifierDataFactory(String configuration) {
+        try {
+            this.cacheManager = new DefaultCacheManager(configuration);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("cannot read " + configuration + ": " + e.getMessage(), e);
+        }
+        this.owned = true;
+    }
+
+    /**
+     * @param cacheManager a running cache manager that declares the "categories" and
+     *                     "features" caches; closing the factory does not stop it
+     */
+    public InfinispanClassifierDataFactory(EmbeddedCacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+        this.owned = false;
+    }
+
+    @Override
+    public Map<Serializable, Integer> buildCategories() {
+        return cacheManager.getCache(CATEGORIES);
+    }
+
+    @Override
+    public Map<Serializable, Feature> buildFeatures() {
+        return cacheManager.getCache(FEATURES);
+    }
+
+    @Override
+    public FeatureStore buildFeatureStore() {
+        return new MapFeatureStore(buildFeatures());
+    }
+
+    /**
+     * @return the statistics of the categories cache
+     */
+    public Stats getCategoryStatistics() {
+        return cacheManager.getCache(CATEGORIES).getAdvancedCache().getStats();
+    }
+
+    /**
+     * @return the statistics of the features cache: hits, misses, evictions and so on
+     */
+    public Stats getFeatureStatistics() {
+        return cacheManager.getCache(FEATURES).getAdvancedCache().getStats();
+    }
+
+    /**
+     * This evicts every feature held in memory, passivating it, so that it is read back
+     * from the store as it is needed. Categories are left alone: the categories cache is
+     * preloaded, and Infinispan only iterates a preloaded cache's memory.
+     */
+    @Override
+    public void clear() {
+        Cache<Object, Object> cache = cacheManager.getCache(FEATURES);
+        for (Object key : cache.getAdvancedCache().withFlags(Flag.SKIP_CACHE_LOAD).keySet().toArray()) {
+            cache.evict(key);
+        }
+    }
+
+    /**
+     * This stops the cache manager, if the factory started it, which flushes every
+     * pending write to the store.
+     */
+    @Override
+    public void close() {
+        if (owned) {
+            cacheManager.stop();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.Feature;
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This keeps one {@link Feature} object per feature in a map.
+ */
+public class MapFeatureStore implements FeatureStore {
+    private final Map<Serializable, Feature> features;
+    // the largest total counted here, or the loosest bound until a supplied map is cleared
+    private final AtomicInteger maxTotal;
+
+    public MapFeatureStore() {
+        this(new ConcurrentHashMap<>(), 0);
+    }
+
+    /**
+     * @param features the map to count in; it may already hold features - a cache can have
+     *                 entries passivated to disk even when it looks empty - so the store
+     *                 makes no assumption about the largest total until it is cleared
+     */
+    public MapFeatureStore(Map<Serializable, Feature> features) {
+        this(features, Integer.MAX_VALUE);
+    }
+
+    private MapFeatureStore(Map<Serializable, Feature> features, int maxTotal) {
+        this.features = features;
+        this.maxTotal = new AtomicInteger(maxTotal);
+    }
+
+    @Override
+    public int featureCount(Serializable feature, Serializable category) {
+        Feature f = features.get(feature);
+        if (f == null) {
+            return 0;
+        }
+        return f.getCountForCategory(category);
+    }
+
+    @Override
+    public int featureTotal(Serializable feature) {
+        Feature f = features.get(feature);
+        return f == null ? 0 : f.getTotal();
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category) {
+        incrementFeature(feature, category, 1);
+    }
+
+    /**
+     * This replaces the feature's entry with an updated copy in one atomic compute, so that
+     * a map backed by a cache - which may hand out its own copy of an entry, and only sees
+     * changes that are put back - never loses a concurrent increment. The copy carries the
+     * feature's total along, so an increment is one merge rather than a sum.
+     */
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category, int count) {
+        Feature result = features.compute(feature, (key, current) -> {
+            Feature updated = current == null ? new Feature(key) : new Feature(current);
+            updated.incrementCategoryCount(category, count);
+            return updated;
+        });
+        int total = result.getTotal();
+        if (total > maxTotal.get()) {
+            maxTotal.accumulateAndGet(total, Math::max);
+        }
+    }
+
+    /**
+     * This is tracked as features are counted through the store, so it assumes nothing else
+     * writes to the map. A store built over a supplied map - a persistent cache, say -
+     * leaves the bound at its loosest until the store is cleared.
+     */
+    @Override
+    public int maxFeatureTotal() {
+        return maxTotal.get();
+    }
+
+    @Override
+    public void forEachFeature(Serializable[] categories, FeatureVisitor visitor) {
+        int[] counts = new int[categories.length];
+        for (Map.Entry<Serializable, Feature> entry : features.entrySet()) {
+            Feature f = entry.getValue();
+            for (int i = 0; i < categories.length; i++) {
+                counts[i] = f.getCountForCategory(categories[i]);
+            }
+            visitor.visit(entry.getKey(), counts, f.getTotal());
+        }
+    }
+
+    @Override
+    public void clear() {
+        features.clear();
+        maxTotal.set(0);
+    }
+}
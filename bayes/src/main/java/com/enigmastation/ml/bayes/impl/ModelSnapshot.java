@@ -0,0 +1,164 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+import com.enigmastation.ml.tokenizer.impl.HashingTokenizer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a trained model, laid out for reading: the features in one
+ * open-addressing array, and their counts in one int array, a row per feature with the
+ * feature's total first and then its count in each category. Nothing in it changes after
+ * construction, so once it has been safely published, reading it takes no locks and no
+ * volatile reads.
+ */
+final class ModelSnapshot implements ModelView {
+    private final Serializable[] categories;
+    private final int[] categoryCounts;
+    private final int totalCount;
+    private final boolean bucketed;
+    private final Object[] keys;
+    private final int[] counts;
+    private final int width;
+    private final int mask;
+    private final int size;
+    private final int maxFeatureTotal;
+
+    /**
+     * Copies the store's counts in the given categories.
+     *
+     * @param features       the store to copy
+     * @param categories     the categories to copy
+     * @param categoryCounts the number of documents trained into each category
+     * @param totalCount     the number of documents trained into any category
+     * @param bucketed       whether the store holds the buckets of a hashing tokenizer,
+     *                       onto which signed features have to be mapped
+     */
+    ModelSnapshot(FeatureStore features, Serializable[] categories, int[] categoryCounts, int totalCount,
+                  boolean bucketed) {
+        this.categories = categories.clone();
+        this.categoryCounts = categoryCounts.clone();
+        this.totalCount = totalCount;
+        this.bucketed = bucketed;
+        this.width = categories.length + 1;
+
+        // the features and their rows, in the order visited, before they are placed
+        Serializable[][] visited = {new Serializable[64]};
+        int[][] rows = {new int[64 * width]};
+        int[] visits = {0};
+        features.forEachFeature(categories, (feature, featureCounts, total) -> {
+            int n = visits[0]++;
+            if (n == visited[0].length) {
+                visited[0] = Arrays.copyOf(visited[0], n * 2);
+                rows[0] = Arrays.copyOf(rows[0], n * 2 * width);
+            }
+            visited[0][n] = feature;
+            rows[0][n * width] = total;
+            System.arraycopy(featureCounts, 0, rows[0], n * width + 1, categories.length);
+        });
+        this.size = visits[0];
+        int capacity = Integer.highestOneBit(Math.max(4, size * 2 - 1)) * 2;
+        this.keys = new Object[capacity];
+        this.counts = new int[capacity * width];
+        this.mask = capacity - 1;
+        int max = 0;
+        for (int i = 0; i < size; i++) {
+            int slot = find(visited[0][i]);
+            keys[slot] = visited[0][i];
+            System.arraycopy(rows[0], i * width, counts, slot * width, width);
+            max = Math.max(max, rows[0][i * width]);
+        }
+        this.maxFeatureTotal = max;
+    }
+
+    /**
+     * @return the number of features in the snapshot
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return whether the features are the buckets of a hashing tokenizer
+     */
+    boolean isBucketed() {
+        return bucketed;
+    }
+
+    /**
+     * Visits every feature in the snapshot, with its counts in {@link #categories()}.
+     *
+     * @param visitor receives each feature
+     */
+    void forEachFeature(FeatureStore.FeatureVisitor visitor) {
+        int[] row = new int[categories.length];
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                System.arraycopy(counts, slot * width + 1, row, 0, categories.length);
+                visitor.visit((Serializable) keys[slot], row, counts[slot * width]);
+            }
+        }
+    }
+
+    @Override
+    public Serializable[] categories() {
+        return categories;
+    }
+
+    @Override
+    public int categoryCount(int index) {
+        return categoryCounts[index];
+    }
+
+    @Override
+    public int totalCount() {
+        return totalCount;
+    }
+
+    @Override
+    public int maxFeatureTotal() {
+        return maxFeatureTotal;
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, int[] counts) {
+        if (bucketed && feature instanceof Integer) {
+            feature = HashingTokenizer.bucket((Integer) feature);
+        }
+        int slot = find(feature);
+        if (keys[slot] == null) {
+            Arrays.fill(counts, 0, categories.length, 0);
+            return 0;
+        }
+        int row = slot * width;
+        System.arraycopy(this.counts, row + 1, counts, 0, categories.length);
+        return this.counts[row];
+    }
+
+    private int find(Object key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        Object candidate;
+        while ((candidate = keys[slot]) != null && !candidate.equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.bayes.impl;
+
+import java.io.Serializable;
+
+/**
+ * This is what scoring needs to see of a trained model: a fixed list of categories, their
+ * document counts, and each feature's counts across all of them at once. A view stays
+ * consistent for the length of one classification even while training goes on.
+ */
+interface ModelView {
+    /**
+     * @return the categories, in the order every per-category array follows
+     */
+    Serializable[] categories();
+
+    /**
+     * @param index the category's position in {@link #categories()}
+     * @return the number of documents trained into the category
+     */
+    int categoryCount(int index);
+
+    /**
+     * @return the number of documents trained into any category
+     */
+    int totalCount();
+
+    /**
+     * @param feature the feature
+     * @param counts  receives the feature's count in each category, by position
+     * @return the number of times the feature has been trained into any category
+     */
+    int featureCounts(Serializable feature, int[] counts);
+
+    /**
+     * This bounds what {@link #featureCounts(Serializable, int[])} can return, which
+     * bounds how much a single feature can move a score. The default is the loosest bound
+     * there is.
+     *
+     * @return no less than the largest number of times any feature has been trained
+     */
+    default int maxFeatureTotal() {
+        return Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntFunction;
+
+/**
+ * This keeps features outside the Java heap, in an {@link OffHeapFeatureStore}: in direct
+ * buffers, or in memory-mapped scratch files in a given directory, which lets the
+ * operating system page a model larger than memory. The scratch files are deleted as soon
+ * as they are mapped; the model does not outlive the process.
+ */
+public class OffHeapClassifierDataFactory implements ClassifierDataFactory {
+    private final IntFunction<ByteBuffer> allocator;
+
+    public OffHeapClassifierDataFactory() {
+        this.allocator = ByteBuffer::allocateDirect;
+    }
+
+    /**
+     * @param directory the directory for the scratch files
+     */
+    public OffHeapClassifierDataFactory(Path directory) {
+        this.allocator = capacity -> map(directory, capacity);
+    }
+
+    @Override
+    public FeatureStore buildFeatureStore() {
+        return new OffHeapFeatureStore(allocator);
+    }
+
+    /**
+     * Nothing is cached, so there is nothing to invalidate.
+     */
+    @Override
+    public void clear() {
+    }
+
+    private static ByteBuffer map(Path directory, int capacity) {
+        try {
+            Path file = Files.createTempFile(directory, "features", ".bin");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
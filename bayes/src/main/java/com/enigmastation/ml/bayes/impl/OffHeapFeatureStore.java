@@ -0,0 +1,432 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * This keeps features and their counts outside the Java heap, in buffers from an
+ * allocator - direct buffers by default - so that a very large vocabulary costs the
+ * garbage collector next to nothing. The only heap objects are a few per segment.
+ * <p>
+ * Each segment appends one record per feature to a buffer: its hash, the length of its
+ * key, its row of int counts (its total, then its count in each category by ordinal) and
+ * its key, as UTF-8 for a String or four bytes for an Integer; other feature types are
+ * refused. A second buffer holds the open-addressing slots that index the records.
+ * <p>
+ * Writes lock a segment. Reads never lock; they see every feature whose insertion
+ * finished before they started, and may miss increments still under way. A record is
+ * published by the volatile write of its table's {@code used} that follows it, and
+ * readers go no further than the {@code used} they read first.
+ */
+public class OffHeapFeatureStore implements FeatureStore {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_SLOTS = 256;
+    private static final int INITIAL_RECORDS = 8192;
+    private static final int INTEGER_KEY = -1;
+
+    private final IntFunction<ByteBuffer> allocator;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Map<Serializable, Integer> ordinals = new ConcurrentHashMap<>();
+    private volatile Serializable[] categories = new Serializable[0];
+
+    public OffHeapFeatureStore() {
+        this(ByteBuffer::allocateDirect);
+    }
+
+    /**
+     * @param allocator supplies zeroed buffers of the requested size; for instance
+     *                  {@code ByteBuffer::allocateDirect}, or a function that maps a file
+     */
+    public OffHeapFeatureStore(IntFunction<ByteBuffer> allocator) {
+        this.allocator = allocator;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @return the number of distinct features counted so far
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.table.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of buffer the store holds
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            Table table = segment.table;
+            bytes += table.slots.capacity() + table.records.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Each segment keeps the largest total it has counted, under the lock its increments
+     * already take, so this is a read of every segment.
+     */
+    @Override
+    public int maxFeatureTotal() {
+        int max = 0;
+        for (Segment segment : segments) {
+            max = Math.max(max, segment.maxTotal);
+        }
+        return max;
+    }
+
+    @Override
+    public int featureCount(Serializable feature, Serializable category) {
+        Integer ordinal = ordinals.get(category);
+        if (ordinal == null) {
+            return 0;
+        }
+        return count(feature, ordinal + 1);
+    }
+
+    @Override
+    public int featureTotal(Serializable feature) {
+        return count(feature, 0);
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, Serializable[] categories, int[] counts) {
+        int hash = hash(feature);
+        Table table = segmentFor(hash).table;
+        int record = table.find(feature, hash);
+        if (record < 0) {
+            Arrays.fill(counts, 0, categories.length, 0);
+            return 0;
+        }
+        for (int i = 0; i < categories.length; i++) {
+            Integer ordinal = ordinals.get(categories[i]);
+            counts[i] = ordinal == null ? 0 : table.count(record, ordinal + 1);
+        }
+        return table.count(record, 0);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category) {
+        incrementFeature(feature, category, 1);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category, int count) {
+        int hash = hash(feature);
+        segmentFor(hash).increment(feature, hash, intern(category) + 1, count);
+    }
+
+    @Override
+    public void forEachFeature(Serializable[] categories, FeatureVisitor visitor) {
+        int[] columns = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            Integer ordinal = ordinals.get(categories[i]);
+            columns[i] = ordinal == null ? -1 : ordinal + 1;
+        }
+        int[] counts = new int[categories.length];
+        for (Segment segment : segments) {
+            Table table = segment.table;
+            int used = table.used;
+            for (int record = 0; record < used; record += table.recordSize(record)) {
+                for (int i = 0; i < columns.length; i++) {
+                    counts[i] = columns[i] < 0 ? 0 : table.count(record, columns[i]);
+                }
+                visitor.visit(table.key(record), counts, table.count(record, 0));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        ordinals.clear();
+        categories = new Serializable[0];
+    }
+
+    private int count(Serializable feature, int column) {
+        int hash = hash(feature);
+        Table table = segmentFor(hash).table;
+        int record = table.find(feature, hash);
+        return record < 0 ? 0 : table.count(record, column);
+    }
+
+    private int intern(Serializable category) {
+        Integer ordinal = ordinals.get(category);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        synchronized (this) {
+            ordinal = ordinals.get(category);
+            if (ordinal == null) {
+                Serializable[] updated = Arrays.copyOf(categories, categories.length + 1);
+                ordinal = categories.length;
+                updated[ordinal] = category;
+                categories = updated;
+                ordinals.put(category, ordinal);
+            }
+            return ordinal;
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 26];
+    }
+
+    private static int hash(Serializable feature) {
+        if (!(feature instanceof String) && !(feature instanceof Integer)) {
+            throw new IllegalArgumentException("features must be Strings or Integers, not " + feature);
+        }
+        int h = feature.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private final class Segment {
+        volatile Table table = new Table(allocator.apply(INITIAL_SLOTS * 4), allocator.apply(INITIAL_RECORDS), 4);
+        volatile int maxTotal;
+
+        synchronized void increment(Serializable key, int hash, int column, int count) {
+            Table current = table;
+            if (column >= current.width) {
+                current = rebuild(current, current.slots.capacity() / 4, Math.max(column + 1, current.width * 2));
+            }
+            int record = current.find(key, hash);
+            if (record >= 0) {
+                current.add(record, column, count);
+                current.add(record, 0, count);
+                int total = current.count(record, 0);
+                if (total > maxTotal) {
+                    maxTotal = total;
+                }
+                return;
+            }
+            if ((current.size + 1) * 4 > (current.slots.capacity() / 4) * 3) {
+                current = rebuild(current, current.slots.capacity() / 2, current.width);
+            }
+            byte[] bytes = key instanceof String ? ((String) key).getBytes(StandardCharsets.UTF_8) : null;
+            int size = Table.recordSize(current.width, bytes == null ? INTEGER_KEY : bytes.length);
+            if (current.used + size > current.records.capacity()) {
+                current = grow(current, size);
+            }
+            current.append(key, hash, bytes, column, count);
+            // a grown or rebuilt table is published here; the record itself already was
+            table = current;
+            if (count > maxTotal) {
+                maxTotal = count;
+            }
+        }
+
+        synchronized void clear() {
+            Table current = table;
+            table = new Table(allocator.apply(INITIAL_SLOTS * 4), allocator.apply(INITIAL_RECORDS), current.width);
+            maxTotal = 0;
+        }
+
+        /* a larger record buffer, with the same records at the same offsets */
+        private Table grow(Table old, int needed) {
+            long capacity = Math.max((long) old.records.capacity() * 2, (long) old.used + needed);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                if ((long) old.used + needed > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("segment is full");
+                }
+                capacity = Integer.MAX_VALUE - 8;
+            }
+            ByteBuffer records = allocator.apply((int) capacity);
+            ByteBuffer source = old.records.duplicate();
+            source.position(0);
+            source.limit(old.used);
+            records.put(source);
+            Table grown = new Table(old.slots, records, old.width);
+            grown.used = old.used;
+            grown.size = old.size;
+            table = grown;
+            return grown;
+        }
+
+        /* new slots and records, with the records copied over at the given width */
+        private Table rebuild(Table old, int slots, int width) {
+            long estimate = (long) old.used / old.width * width + INITIAL_RECORDS;
+            Table rebuilt = new Table(allocator.apply(slots * 4),
+                    allocator.apply((int) Math.min(estimate, Integer.MAX_VALUE - 8)), width);
+            for (int record = 0; record < old.used; record += old.recordSize(record)) {
+                Serializable key = old.key(record);
+                byte[] bytes = key instanceof String ? ((String) key).getBytes(StandardCharsets.UTF_8) : null;
+                int size = Table.recordSize(width, bytes == null ? INTEGER_KEY : bytes.length);
+                if (rebuilt.used + size > rebuilt.records.capacity()) {
+                    rebuilt = grow(rebuilt, size);
+                }
+                int copy = rebuilt.append(key, old.hash(record), bytes, 0, 0);
+                for (int column = 0; column < old.width; column++) {
+                    rebuilt.add(copy, column, old.count(record, column));
+                }
+            }
+            table = rebuilt;
+            return rebuilt;
+        }
+    }
+
+    /**
+     * One generation of a segment: slots hold a record's offset divided by four, plus
+     * one, or zero when empty. A slot can point past {@code used} while its record is
+     * being appended; readers step over it.
+     */
+    private static final class Table {
+        final ByteBuffer slots;
+        final ByteBuffer records;
+        final int width;
+        final int mask;
+        volatile int used;
+        volatile int size;
+
+        Table(ByteBuffer slots, ByteBuffer records, int width) {
+            this.slots = slots;
+            this.records = records;
+            this.width = width;
+            this.mask = slots.capacity() / 4 - 1;
+        }
+
+        static int recordSize(int width, int keyLength) {
+            int key = keyLength == INTEGER_KEY ? 4 : keyLength;
+            return (8 + 4 * width + key + 3) & ~3;
+        }
+
+        int recordSize(int record) {
+            return recordSize(width, records.getInt(record + 4));
+        }
+
+        int hash(int record) {
+            return records.getInt(record);
+        }
+
+        int count(int record, int column) {
+            return records.getInt(record + 8 + 4 * column);
+        }
+
+        void add(int record, int column, int count) {
+            int offset = record + 8 + 4 * column;
+            records.putInt(offset, records.getInt(offset) + count);
+        }
+
+        Serializable key(int record) {
+            int length = records.getInt(record + 4);
+            int start = record + 8 + 4 * width;
+            if (length == INTEGER_KEY) {
+                return records.getInt(start);
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = records.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /* the offset of the key's record, or -1 */
+        int find(Serializable key, int hash) {
+            int published = used;
+            int slot = hash & mask;
+            int entry;
+            while ((entry = slots.getInt(slot * 4)) != 0) {
+                int record = (entry - 1) * 4;
+                if (record < published && records.getInt(record) == hash && matches(record, key)) {
+                    return record;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /* writes a record at the end of the buffer and the slot that indexes it, then publishes both */
+        int append(Serializable key, int hash, byte[] bytes, int column, int count) {
+            int record = used;
+            records.putInt(record, hash);
+            records.putInt(record + 4, bytes == null ? INTEGER_KEY : bytes.length);
+            int start = record + 8 + 4 * width;
+            if (bytes == null) {
+                records.putInt(start, (Integer) key);
+            } else {
+                for (int i = 0; i < bytes.length; i++) {
+                    records.put(start + i, bytes[i]);
+                }
+            }
+            add(record, column, count);
+            if (column != 0) {
+                add(record, 0, count);
+            }
+            int slot = hash & mask;
+            while (slots.getInt(slot * 4) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots.putInt(slot * 4, record / 4 + 1);
+            size++;
+            used = record + recordSize(record);
+            return record;
+        }
+
+        /* compares the key with the record's UTF-8 or int key, without decoding it */
+        private boolean matches(int record, Serializable key) {
+            int length = records.getInt(record + 4);
+            int position = record + 8 + 4 * width;
+            if (length == INTEGER_KEY) {
+                return key instanceof Integer && records.getInt(position) == (Integer) key;
+            }
+            if (!(key instanceof String)) {
+                return false;
+            }
+            String text = (String) key;
+            int end = position + length;
+            int i = 0;
+            while (position < end) {
+                int b = records.get(position++) & 0xff;
+                int c;
+                if (b < 0x80) {
+                    c = b;
+                } else if (b < 0xe0) {
+                    c = (b & 0x1f) << 6 | (records.get(position++) & 0x3f);
+                } else if (b < 0xf0) {
+                    c = (b & 0x0f) << 12 | (records.get(position++) & 0x3f) << 6 | (records.get(position++) & 0x3f);
+                } else {
+                    c = (b & 0x07) << 18 | (records.get(position++) & 0x3f) << 12
+                            | (records.get(position++) & 0x3f) << 6 | (records.get(position++) & 0x3f);
+                    if (i >= text.length() || text.charAt(i++) != Character.highSurrogate(c)) {
+                        return false;
+                    }
+                    c = Character.lowSurrogate(c);
+                }
+                if (i >= text.length() || text.charAt(i++) != c) {
+                    return false;
+                }
+            }
+            return i == text.length();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.Serializable;
+
+/**
+ * This serves the counts of a loaded {@link BinaryModel} plus whatever has been trained
+ * since, which goes into a store of its own: the mapped model is never written to.
+ */
+class OverlayFeatureStore implements FeatureStore {
+    private final BinaryModel base;
+    private final FeatureStore delta;
+
+    OverlayFeatureStore(BinaryModel base, FeatureStore delta) {
+        this.base = base;
+        this.delta = delta;
+    }
+
+    @Override
+    public int featureCount(Serializable feature, Serializable category) {
+        int index = base.find(feature);
+        int column = index < 0 ? -1 : base.column(category);
+        return (column < 0 ? 0 : base.count(index, column)) + delta.featureCount(feature, category);
+    }
+
+    @Override
+    public int featureTotal(Serializable feature) {
+        int index = base.find(feature);
+        return (index < 0 ? 0 : base.count(index, -1)) + delta.featureTotal(feature);
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, Serializable[] categories, int[] counts) {
+        int total = delta.featureCounts(feature, categories, counts);
+        int index = base.find(feature);
+        if (index < 0) {
+            return total;
+        }
+        for (int i = 0; i < categories.length; i++) {
+            int column = base.column(categories[i]);
+            if (column >= 0) {
+                counts[i] += base.count(index, column);
+            }
+        }
+        return total + base.count(index, -1);
+    }
+
+    /**
+     * A feature's total is its total in the model plus its total since, so the sum of the
+     * two bounds bounds it.
+     */
+    @Override
+    public int maxFeatureTotal() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) base.maxFeatureTotal() + delta.maxFeatureTotal());
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category) {
+        delta.incrementFeature(feature, category);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category, int count) {
+        delta.incrementFeature(feature, category, count);
+    }
+
+    @Override
+    public void forEachFeature(Serializable[] categories, FeatureVisitor visitor) {
+        int[] counts = new int[categories.length];
+        base.forEachFeature(categories, (feature, baseCounts, baseTotal) -> {
+            int total = delta.featureCounts(feature, categories, counts) + baseTotal;
+            for (int i = 0; i < categories.length; i++) {
+                counts[i] += baseCounts[i];
+            }
+            visitor.visit(feature, counts, total);
+        });
+        delta.forEachFeature(categories, (feature, deltaCounts, total) -> {
+            if (base.find(feature) < 0) {
+                visitor.visit(feature, deltaCounts, total);
+            }
+        });
+    }
+
+    /**
+     * This only counts what was trained since the model was loaded, which is all that
+     * takes memory; the mapped model is paged in and out by the operating system.
+     */
+    @Override
+    public int size() {
+        return delta.size();
+    }
+
+    @Override
+    public boolean canPrune() {
+        return delta.canPrune();
+    }
+
+    /**
+     * This only prunes what was trained since the model was loaded; the mapped model is
+     * read-only.
+     */
+    @Override
+    public int prune(int target) {
+        return delta.prune(target);
+    }
+
+    /**
+     * This only clears what was trained since the model was loaded; the mapped model is
+     * read-only.
+     */
+    @Override
+    public void clear() {
+        delta.clear();
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.bayes.impl;
+
+import com.enigmastation.ml.bayes.FeatureStore;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This keeps feature counts in primitive arrays rather than in a map of {@link
+ * com.enigmastation.ml.bayes.Feature} objects: categories are interned to small
+ * ordinals, and each feature owns one row of int counts in an open-addressing table:
+ * its total, followed by its count in each category by ordinal. A feature costs its key,
+ * a key slot and four bytes per category, plus four for the total.
+ * <p>
+ * The table is split into segments. Writes lock a segment; reads never lock, and see
+ * every count written before the feature's key became visible.
+ * <p>
+ * Each feature also remembers the last epoch it was counted in; an epoch ends with
+ * every {@link #prune(int)}, which is how pruning tells stale features from fresh ones.
+ */
+public class PrimitiveFeatureStore implements FeatureStore {
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 64;
+    // pruning ranks features by total, up to this, and then by age in epochs, up to AGES
+    private static final int RARITIES = 64;
+    private static final int AGES = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Map<Serializable, Integer> ordinals = new ConcurrentHashMap<>();
+    private volatile Serializable[] categories = new Serializable[0];
+    private final Object pruning = new Object();
+    private volatile int epoch;
+
+    public PrimitiveFeatureStore() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param category a category
+     * @return the category's ordinal, or -1 if nothing has been counted in it
+     */
+    public int categoryOrdinal(Serializable category) {
+        Integer ordinal = ordinals.get(category);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * @param ordinal an ordinal handed out by this store
+     * @return the category it stands for
+     */
+    public Serializable category(int ordinal) {
+        return categories[ordinal];
+    }
+
+    /**
+     * @return the number of categories counted so far
+     */
+    public int categoryCount() {
+        return categories.length;
+    }
+
+    /**
+     * @return the number of distinct features counted so far
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.table.size;
+        }
+        return size;
+    }
+
+    /**
+     * Each segment keeps the largest total it has counted, under the lock its increments
+     * already take, so this is a read of every segment.
+     */
+    @Override
+    public int maxFeatureTotal() {
+        int max = 0;
+        for (Segment segment : segments) {
+            max = Math.max(max, segment.maxTotal);
+        }
+        return max;
+    }
+
+    @Override
+    public int featureCount(Serializable feature, Serializable category) {
+        return featureCount(feature, categoryOrdinal(category));
+    }
+
+    /**
+     * @param feature  the feature
+     * @param ordinal  the category's ordinal, from {@link #categoryOrdinal(Serializable)}
+     * @return the number of times the feature has been counted in the category
+     */
+    public int featureCount(Serializable feature, int ordinal) {
+        if (ordinal < 0) {
+            return 0;
+        }
+        int hash = hash(feature);
+        return segmentFor(hash).table.count(feature, hash, ordinal);
+    }
+
+    @Override
+    public int featureTotal(Serializable feature) {
+        int hash = hash(feature);
+        return segmentFor(hash).table.count(feature, hash, -1);
+    }
+
+    @Override
+    public int featureCounts(Serializable feature, Serializable[] categories, int[] counts) {
+        int hash = hash(feature);
+        Table table = segmentFor(hash).table;
+        int slot = table.find(feature, hash);
+        if (table.keys.get(slot) == null) {
+            Arrays.fill(counts, 0, categories.length, 0);
+            return 0;
+        }
+        int row = slot * table.width;
+        for (int i = 0; i < categories.length; i++) {
+            int column = categoryOrdinal(categories[i]) + 1;
+            counts[i] = column > 0 && column < table.width ? table.counts.get(row + column) : 0;
+        }
+        return table.counts.get(row);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category) {
+        incrementFeature(feature, category, 1);
+    }
+
+    @Override
+    public void incrementFeature(Serializable feature, Serializable category, int count) {
+        int hash = hash(feature);
+        segmentFor(hash).increment(feature, hash, intern(category), count, epoch);
+    }
+
+    @Override
+    public void forEachFeature(Serializable[] categories, FeatureVisitor visitor) {
+        int[] counts = new int[categories.length];
+        int[] columns = new int[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            columns[i] = categoryOrdinal(categories[i]) + 1;
+        }
+        for (Segment segment : segments) {
+            Table table = segment.table;
+            for (int slot = 0; slot < table.keys.length(); slot++) {
+                Object key = table.keys.get(slot);
+                if (key != null) {
+                    int row = slot * table.width;
+                    for (int i = 0; i < columns.length; i++) {
+                        counts[i] = columns[i] > 0 && columns[i] < table.width ? table.counts.get(row + columns[i]) : 0;
+                    }
+                    visitor.visit((Serializable) key, counts, table.counts.get(row));
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean canPrune() {
+        return true;
+    }
+
+    /**
+     * This ranks the features by total and age with one pass over the segments, then
+     * rebuilds each segment without the features ranked lowest, one segment at a time.
+     * Reads never wait for it; an increment waits only while its own segment is rebuilt.
+     * Features counted during the pass may survive it, so it can leave a few more than the
+     * target.
+     */
+    @Override
+    public int prune(int target) {
+        synchronized (pruning) {
+            int excess = size() - target;
+            if (excess <= 0) {
+                return 0;
+            }
+            int now = epoch;
+            int[] ranks = new int[RARITIES * AGES];
+            for (Segment segment : segments) {
+                Table table = segment.table;
+                for (int slot = 0; slot < table.keys.length(); slot++) {
+                    if (table.keys.get(slot) != null) {
+                        ranks[table.rank(slot, now)]++;
+                    }
+                }
+            }
+            // everything ranked below the cutoff goes, and the quota of features ranked at it
+            int cutoff = 0;
+            int[] quota = {excess};
+            while (cutoff < ranks.length - 1 && ranks[cutoff] < quota[0]) {
+                quota[0] -= ranks[cutoff++];
+            }
+            int removed = 0;
+            for (Segment segment : segments) {
+                removed += segment.prune(cutoff, quota, now);
+            }
+            epoch = now + 1;
+            return removed;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        ordinals.clear();
+        categories = new Serializable[0];
+    }
+
+    private int intern(Serializable category) {
+        Integer ordinal = ordinals.get(category);
+        if (ordinal != null) {
+            return ordinal;
+        }
+        synchronized (this) {
+            ordinal = ordinals.get(category);
+            if (ordinal == null) {
+                Serializable[] updated = Arrays.copyOf(categories, categories.length + 1);
+                ordinal = categories.length;
+                updated[ordinal] = category;
+                categories = updated;
+                ordinals.put(category, ordinal);
+            }
+            return ordinal;
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 26];
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Segment {
+        volatile Table table = new Table(INITIAL_CAPACITY, 3);
+        volatile int maxTotal;
+
+        synchronized void increment(Serializable key, int hash, int ordinal, int count, int epoch) {
+            Table current = table;
+            int column = ordinal + 1;
+            if (column >= current.width) {
+                current = resize(current, current.keys.length(), Math.max(column + 1, current.width * 2), null);
+            }
+            int slot = current.find(key, hash);
+            int row = slot * current.width;
+            if (current.keys.get(slot) != null) {
+                current.counts.set(row + column, current.counts.get(row + column) + count);
+                int total = current.counts.get(row) + count;
+                current.counts.set(row, total);
+                current.seen.set(slot, epoch);
+                if (total > maxTotal) {
+                    maxTotal = total;
+                }
+                return;
+            }
+            if ((current.size + 1) * 4 > current.keys.length() * 3) {
+                current = resize(current, current.keys.length() * 2, current.width, null);
+                slot = current.find(key, hash);
+                row = slot * current.width;
+            }
+            // the counts go in before the key publishes them
+            current.counts.set(row + column, count);
+            current.counts.set(row, count);
+            current.seen.set(slot, epoch);
+            current.keys.set(slot, key);
+            current.size++;
+            if (count > maxTotal) {
+                maxTotal = count;
+            }
+        }
+
+        synchronized void clear() {
+            table = new Table(INITIAL_CAPACITY, table.width);
+            maxTotal = 0;
+        }
+
+        /* rebuilds the table without the features ranked below the cutoff, and up to the quota ranked at it */
+        synchronized int prune(int cutoff, int[] quota, int now) {
+            Table current = table;
+            boolean[] dropped = new boolean[current.keys.length()];
+            int removed = 0;
+            for (int slot = 0; slot < dropped.length; slot++) {
+                if (current.keys.get(slot) != null) {
+                    int rank = current.rank(slot, now);
+                    if (rank < cutoff || (rank == cutoff && quota[0] > 0)) {
+                        if (rank == cutoff) {
+                            quota[0]--;
+                        }
+                        dropped[slot] = true;
+                        removed++;
+                    }
+                }
+            }
+            if (removed > 0) {
+                int capacity = INITIAL_CAPACITY;
+                while (capacity < (current.size - removed) * 2) {
+                    capacity *= 2;
+                }
+                resize(current, capacity, current.width, dropped);
+            }
+            return removed;
+        }
+
+        private Table resize(Table old, int capacity, int width, boolean[] dropped) {
+            Table resized = new Table(capacity, width);
+            for (int slot = 0; slot < old.keys.length(); slot++) {
+                Object key = old.keys.get(slot);
+                if (key != null && (dropped == null || !dropped[slot])) {
+                    int target = resized.find(key, hash(key));
+                    for (int i = 0; i < old.width; i++) {
+                        resized.counts.set(target * width + i, old.counts.get(slot * old.width + i));
+                    }
+                    resized.seen.set(target, old.seen.get(slot));
+                    resized.keys.set(target, key);
+                    resized.size++;
+                }
+            }
+            table = resized;
+            return resized;
+        }
+    }
+
+    /**
+     * One generation of a segment's table: keys in linear-probing slots, a row of width
+     * counts per slot, the feature's total first, and the epoch each slot was last counted
+     * in. A table is replaced, never grown or shrunk in place.
+     */
+    private static final class Table {
+        final AtomicReferenceArray<Object> keys;
+        final AtomicIntegerArray counts;
+        final AtomicIntegerArray seen;
+        final int width;
+        final int mask;
+        int size;
+
+        Table(int capacity, int width) {
+            keys = new AtomicReferenceArray<>(capacity);
+            counts = new AtomicIntegerArray(capacity * width);
+            seen = new AtomicIntegerArray(capacity);
+            this.width = width;
+            this.mask = capacity - 1;
+        }
+
+        /* the key's slot, or the empty slot where it would go */
+        int find(Object key, int hash) {
+            int slot = hash & mask;
+            Object candidate;
+            while ((candidate = keys.get(slot)) != null && !candidate.equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /* orders features for pruning: by total, then from the oldest epoch to the newest */
+        int rank(int slot, int now) {
+            int rarity = Math.min(Math.max(counts.get(slot * width), 1), RARITIES) - 1;
+            int age = Math.min(now - seen.get(slot), AGES - 1);
+            return rarity * AGES + (AGES - 1 - age);
+        }
+
+        /* the count in the category with the ordinal, or the total for an ordinal of -1 */
+        int count(Object key, int hash, int ordinal) {
+            int column = ordinal + 1;
+            if (column >= width) {
+                return 0;
+            }
+            int slot = find(key, hash);
+            return keys.get(slot) == null ? 0 : counts.get(slot * width + column);
+        }
+    }
+}
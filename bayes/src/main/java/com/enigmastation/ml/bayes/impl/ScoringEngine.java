@@ -0,0 +1,375 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.bayes.impl;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * This scores a document against every category of a model in one pass: each feature's
+ * counts are fetched once, for all categories together, and the per-category products
+ * of weighted probabilities are accumulated as sums of logarithms, so long documents do
+ * not underflow to zero.
+ */
+final class ScoringEngine {
+    private static final int MAX_ITERATIONS = 10000;
+    private static final double EPSILON = 1e-15;
+    private static final double TINY = 1e-300;
+    // keeps bounds on probabilities clear of rounding in invChi
+    private static final double SLACK = 1e-12;
+    private static final int FINITE_SUM_LIMIT = 64;
+    private static final double UNDERFLOW = 700.0;
+    private static final double HALF_LOG_TWO_PI = 0.5 * Math.log(2.0 * Math.PI);
+    // log(n!) at index n, which is log(gamma(n + 1))
+    private static final double[] LOG_FACTORIALS = new double[1024];
+    private static final double[] RECIPROCALS = new double[FINITE_SUM_LIMIT + 1];
+
+    static {
+        for (int n = 1; n < LOG_FACTORIALS.length; n++) {
+            LOG_FACTORIALS[n] = LOG_FACTORIALS[n - 1] + Math.log(n);
+        }
+        for (int n = 1; n < RECIPROCALS.length; n++) {
+            RECIPROCALS[n] = 1.0 / n;
+        }
+    }
+
+    // per-thread working arrays, so that scoring a document allocates nothing
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private ScoringEngine() {
+    }
+
+    /**
+     * The features of one document, streamed to an action one at a time rather than
+     * collected first.
+     */
+    @FunctionalInterface
+    interface FeatureSource {
+        void forEach(Consumer<Serializable> action);
+    }
+
+    /**
+     * Computes, for every category, the log of the product of the document's weighted
+     * feature probabilities - an assumed probability of 0.5 with a weight of 1, moved
+     * towards the feature's observed frequency in the category as evidence grows.
+     *
+     * @param model      the model to score against
+     * @param features   the document's features
+     * @param normalized whether a feature's frequency in a category is divided by the sum
+     *                   of its frequencies in all categories, as the Fisher method does
+     * @param logs       receives the log probability of the document in each category, by
+     *                   position
+     * @return the number of features in the document
+     */
+    static int weightedLogProbabilities(ModelView model, FeatureSource features, boolean normalized, double[] logs) {
+        int categories = model.categories().length;
+        Scratch scratch = acquire();
+        try {
+            scratch.sized(model, categories);
+            Arrays.fill(logs, 0, categories, 0.0);
+            int[] size = {0};
+            features.forEach(feature -> {
+                accumulate(model, feature, normalized, scratch, categories, logs, null);
+                size[0]++;
+            });
+            return size[0];
+        } finally {
+            scratch.busy = false;
+        }
+    }
+
+    /*
+     * A thread can start scoring another document before it finishes one - a fork-join
+     * worker that picks up a batch task while it waits on a parallel tokenizer - so a
+     * nested score gets a throwaway scratch instead of clobbering the one in use.
+     */
+    private static Scratch acquire() {
+        Scratch scratch = SCRATCH.get();
+        if (scratch.busy) {
+            scratch = new Scratch();
+        }
+        scratch.busy = true;
+        return scratch;
+    }
+
+    /* adds the log of the feature's weighted probability to the logs of the live categories, or of all of them */
+    private static void accumulate(ModelView model, Serializable feature, boolean normalized, Scratch scratch,
+                                   int categories, double[] logs, boolean[] live) {
+        int[] counts = scratch.counts;
+        int[] categoryCounts = scratch.categoryCounts;
+        double[] probabilities = scratch.probabilities;
+        int total = model.featureCounts(feature, counts);
+        double frequencySum = 0.0;
+        for (int i = 0; i < categories; i++) {
+            probabilities[i] = categoryCounts[i] == 0 ? 0.0 : (1.0 * counts[i]) / categoryCounts[i];
+            frequencySum += probabilities[i];
+        }
+        for (int i = 0; i < categories; i++) {
+            if (live == null || live[i]) {
+                double probability = probabilities[i];
+                if (normalized) {
+                    probability = Math.abs(probability) < 0.000001 ? 0.0 : probability / frequencySum;
+                }
+                logs[i] += Math.log((0.5 + total * probability) / (1.0 + total));
+            }
+        }
+    }
+
+    /**
+     * Combines the document's normalized feature probabilities with Fisher's method.
+     *
+     * @param model         the model to score against
+     * @param features      the document's features
+     * @param probabilities receives the probability of the document belonging to each
+     *                      category, by position
+     */
+    static void fisherProbabilities(ModelView model, FeatureSource features, double[] probabilities) {
+        double df = weightedLogProbabilities(model, features, true, probabilities) * 2.0;
+        for (int i = 0; i < model.categories().length; i++) {
+            probabilities[i] = invChi(-2.0 * probabilities[i], df);
+        }
+    }
+
+    /**
+     * Picks the category the Fisher method ranks first - the one with the highest
+     * probability above its minimum, the first of equals - without always scoring the
+     * whole document. The features are scored a block at a time. A weighted probability
+     * lies between 0.5 / (1 + the model's largest feature total) and 1, which bounds the
+     * log of each category's final product on both sides after every block. A category
+     * whose best case cannot clear its minimum, or cannot beat the worst case of a
+     * category that is sure to clear its own, is dropped from further scoring, and the
+     * scoring stops when only one category remains. Whatever is still undecided after the
+     * last block is decided from the exact scores, so the pick is always the one {@link
+     * #fisherProbabilities(ModelView, FeatureSource, double[])} would lead to. The bounds
+     * need the document's length, so its features are gathered into a per-thread buffer
+     * first, but none of them is looked up until it is scored.
+     *
+     * @param model     the model to score against
+     * @param features  the document's features
+     * @param minimums  the minimum probability of each category, by position
+     * @param blockSize the number of features between checks of the bounds
+     * @return the position of the winning category, or -1 if no category clears its minimum
+     */
+    static int fisherBest(ModelView model, FeatureSource features, double[] minimums, int blockSize) {
+        int categories = model.categories().length;
+        Scratch scratch = acquire();
+        try {
+            scratch.sized(model, categories);
+            features.forEach(scratch::add);
+            return fisherBest(model, scratch, categories, minimums, blockSize);
+        } finally {
+            scratch.clearFeatures();
+            scratch.busy = false;
+        }
+    }
+
+    private static int fisherBest(ModelView model, Scratch scratch, int categories, double[] minimums, int blockSize) {
+        double[] logs = scratch.logs;
+        boolean[] live = scratch.live;
+        Arrays.fill(logs, 0, categories, 0.0);
+        Arrays.fill(live, 0, categories, true);
+        int remaining = categories;
+        int size = scratch.size;
+        double df = size * 2.0;
+        double floor = Math.log(0.5 / (1.0 + model.maxFeatureTotal()));
+        for (int start = 0; start < size; start += blockSize) {
+            int end = Math.min(size, start + blockSize);
+            for (int f = start; f < end; f++) {
+                accumulate(model, scratch.features[f], true, scratch, categories, logs, live);
+            }
+            if (end == size) {
+                break;
+            }
+            double rest = floor * (size - end);
+            int leader = -1;
+            double leaderLower = 0.0;
+            for (int i = 0; i < categories; i++) {
+                if (live[i]) {
+                    double lower = invChi(-2.0 * (logs[i] + rest), df) - SLACK;
+                    if (lower > minimums[i] && lower > leaderLower) {
+                        leader = i;
+                        leaderLower = lower;
+                    }
+                }
+            }
+            for (int i = 0; i < categories; i++) {
+                if (live[i] && i != leader) {
+                    double upper = invChi(-2.0 * logs[i], df) + SLACK;
+                    if (upper <= minimums[i] || (leader >= 0 && upper < leaderLower)) {
+                        live[i] = false;
+                        remaining--;
+                    }
+                }
+            }
+            if (remaining == 0) {
+                return -1;
+            }
+            if (remaining == 1 && leader >= 0) {
+                return leader;
+            }
+        }
+        int best = -1;
+        double max = 0.0;
+        for (int i = 0; i < categories; i++) {
+            if (live[i]) {
+                double p = invChi(-2.0 * logs[i], df);
+                if (p > minimums[i] && p > max) {
+                    best = i;
+                    max = p;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The chi-squared survival function, which is the regularized upper incomplete gamma
+     * function Q(df/2, chi/2). Summing its series term by term, from e^-(chi/2) up, takes
+     * one step per feature and underflows to zero for long documents, so this works in
+     * logarithms instead: a power series for the lower tail when chi/2 is below df/2 + 1,
+     * and a continued fraction for the upper tail otherwise. Either converges in far fewer
+     * steps than there are features, and neither allocates.
+     *
+     * @param chi the chi-squared statistic
+     * @param df  the degrees of freedom
+     * @return the probability of a statistic at least as large, between 0 and 1
+     */
+    static double invChi(double chi, double df) {
+        double a = df / 2.0;
+        double x = chi / 2.0;
+        if (!(x > 0.0)) {
+            return 1.0;
+        }
+        if (a < 1.0) {
+            return Math.exp(-x);
+        }
+        if (a <= FINITE_SUM_LIMIT && x < UNDERFLOW && a == Math.rint(a)) {
+            // few enough terms to add up directly, none of which underflows
+            double term = Math.exp(-x);
+            double sum = term;
+            for (int i = 1; i < (int) a; i++) {
+                term *= x * RECIPROCALS[i];
+                sum += term;
+            }
+            return clamp(sum);
+        }
+        double logPrefix = a * Math.log(x) - x - logGamma(a);
+        if (x < a + 1.0) {
+            double term = 1.0 / a;
+            double sum = term;
+            for (int n = 1; n < MAX_ITERATIONS && term > sum * EPSILON; n++) {
+                term *= x / (a + n);
+                sum += term;
+            }
+            return clamp(1.0 - Math.exp(logPrefix + Math.log(sum)));
+        }
+        // modified Lentz evaluation of the continued fraction for the upper tail
+        double b = x + 1.0 - a;
+        double c = 1.0 / TINY;
+        double d = 1.0 / b;
+        double fraction = d;
+        for (int n = 1; n < MAX_ITERATIONS; n++) {
+            double an = -n * (n - a);
+            b += 2.0;
+            d = an * d + b;
+            if (Math.abs(d) < TINY) {
+                d = TINY;
+            }
+            c = b + an / c;
+            if (Math.abs(c) < TINY) {
+                c = TINY;
+            }
+            d = 1.0 / d;
+            double delta = d * c;
+            fraction *= delta;
+            if (Math.abs(delta - 1.0) < EPSILON) {
+                break;
+            }
+        }
+        return clamp(Math.exp(logPrefix + Math.log(fraction)));
+    }
+
+    /* log(gamma(a)) for a >= 1: from the table for whole numbers, else by Stirling's series */
+    static double logGamma(double a) {
+        if (a < LOG_FACTORIALS.length && a == Math.rint(a)) {
+            return LOG_FACTORIALS[(int) a - 1];
+        }
+        double shift = 0.0;
+        while (a < 10.0) {
+            shift -= Math.log(a);
+            a += 1.0;
+        }
+        double inverse = 1.0 / a;
+        double square = inverse * inverse;
+        return shift + (a - 0.5) * Math.log(a) - a + HALF_LOG_TWO_PI
+                + inverse * (1.0 / 12 - square * (1.0 / 360 - square * (1.0 / 1260 - square / 1680)));
+    }
+
+    private static double clamp(double probability) {
+        return Math.max(0.0, Math.min(probability, 1.0));
+    }
+
+    /**
+     * One thread's working arrays, grown to the largest model the thread has scored, and
+     * its buffer of a document's features, which is emptied after every use.
+     */
+    private static final class Scratch {
+        // a buffer larger than this is not kept between documents
+        private static final int RETAINED_FEATURES = 1 << 16;
+        int[] categoryCounts = new int[0];
+        int[] counts = new int[0];
+        double[] probabilities = new double[0];
+        double[] logs = new double[0];
+        boolean[] live = new boolean[0];
+        Serializable[] features = new Serializable[64];
+        int size;
+        boolean busy;
+
+        /* sizes the arrays for the model and loads its category counts */
+        Scratch sized(ModelView model, int categories) {
+            if (counts.length < categories) {
+                categoryCounts = new int[categories];
+                counts = new int[categories];
+                probabilities = new double[categories];
+                logs = new double[categories];
+                live = new boolean[categories];
+            }
+            for (int i = 0; i < categories; i++) {
+                categoryCounts[i] = model.categoryCount(i);
+            }
+            return this;
+        }
+
+        void add(Serializable feature) {
+            if (size == features.length) {
+                features = Arrays.copyOf(features, size * 2);
+            }
+            features[size++] = feature;
+        }
+
+        void clearFeatures() {
+            if (features.length > RETAINED_FEATURES) {
+                features = new Serializable[64];
+            } else {
+                Arrays.fill(features, 0, size, null);
+            }
+            size = 0;
+        }
+    }
+}
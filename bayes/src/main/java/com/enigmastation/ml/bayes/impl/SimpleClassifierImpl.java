@@ -16,19 +16,44 @@
 
 package com.enigmastation.ml.bayes.impl;
 
-import com.enigmastation.ml.bayes.Feature;
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
+import com.enigmastation.ml.bayes.FeatureStore;
 import com.enigmastation.ml.bayes.SimpleClassifier;
+import com.enigmastation.ml.bayes.TrainingDocument;
 import com.enigmastation.ml.bayes.annotations.BayesClassifier;
 import com.enigmastation.ml.bayes.annotations.NaiveBayesClassifier;
 import com.enigmastation.ml.tokenizer.Tokenizer;
+import com.enigmastation.ml.tokenizer.impl.HashingTokenizer;
 import com.enigmastation.ml.tokenizer.impl.PorterTokenizer;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This is a simple (naive) bayesian classifier.
@@ -36,12 +61,79 @@ import java.util.concurrent.ConcurrentHashMap;
 @BayesClassifier
 @NaiveBayesClassifier
 public class SimpleClassifierImpl implements SimpleClassifier {
-    private static final ThreadLocal<Serializable> lastData = new ThreadLocal<>();
-    private static final ThreadLocal<List<Serializable>> lastFeatures = new ThreadLocal<>();
-    private Map<Serializable, Feature> features = new ConcurrentHashMap<>();
-    Map<Serializable, Integer> categories = new ConcurrentHashMap<>();
-    private Tokenizer tokenizer = new PorterTokenizer();
+    // per-thread counts for train(), so that training a document allocates next to nothing
+    private static final ThreadLocal<FeatureTally> TALLY = ThreadLocal.withInitial(FeatureTally::new);
+
+    private volatile FeatureStore features;
+    final Map<Serializable, CategoryCount> categories = new ConcurrentHashMap<>();
+    private final LongAdder total = new LongAdder();
+    // the factory's map of category counts, which trails the counters for factories that persist it
+    private final Map<Serializable, Integer> categoryStore;
+    private final ClassifierDataFactory dataFactory;
+    private final boolean hashed;
+    private final Tokenizer tokenizer;
     private Map<Serializable, Double> thresholds = new ConcurrentHashMap<>();
+    private volatile Executor executor;
+    private volatile int mergeThreshold = 1 << 16;
+    private volatile int featureBudget;
+    private final AtomicBoolean pruning = new AtomicBoolean();
+    private final AtomicLong prunes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong failedSnapshots = new AtomicLong();
+    // trainers pass through it; saving and loading close it
+    private final TrainingGate gate = new TrainingGate();
+    private volatile ModelSnapshot snapshot;
+    private volatile TrainingJournal journal;
+    // the last journal record the loaded model holds
+    private volatile long checkpoint;
+    private ScheduledFuture<?> publication;
+    private long snapshotInterval;
+
+    public SimpleClassifierImpl() {
+        this(new PorterTokenizer());
+    }
+
+    /**
+     * A {@link HashingTokenizer} gets a fixed-size count table sized to its feature space;
+     * any other tokenizer gets a table that grows with the vocabulary.
+     *
+     * @param tokenizer the tokenizer that extracts features from training and classification data
+     */
+    public SimpleClassifierImpl(Tokenizer tokenizer) {
+        this(tokenizer, new HeapClassifierDataFactory(tokenizer instanceof HashingTokenizer
+                ? ((HashingTokenizer) tokenizer).getDimension() : 0));
+    }
+
+    /**
+     * @param tokenizer   the tokenizer that extracts features from training and classification data
+     * @param dataFactory the factory that builds the category counts and the feature store
+     */
+    public SimpleClassifierImpl(Tokenizer tokenizer, ClassifierDataFactory dataFactory) {
+        this.tokenizer = tokenizer;
+        this.dataFactory = dataFactory;
+        this.categoryStore = dataFactory.buildCategories();
+        this.features = dataFactory.buildFeatureStore();
+        this.hashed = tokenizer instanceof HashingTokenizer;
+        categoryStore.forEach((category, count) -> {
+            categories.computeIfAbsent(category, c -> new CategoryCount()).add(count);
+            total.add(count);
+        });
+    }
+
+    public ClassifierDataFactory getDataFactory() {
+        return dataFactory;
+    }
+
+    /**
+     * This returns the tokenizer, through which limits on per-document work - a
+     * {@link com.enigmastation.ml.tokenizer.impl.LimitingTokenizer}, for example - can
+     * be adjusted.
+     *
+     * @return the tokenizer that extracts features
+     */
+    public Tokenizer getTokenizer() {
+        return tokenizer;
+    }
 
     /**
      * This returns the best-match classification from the bayesian engine.
@@ -90,26 +182,45 @@ public class SimpleClassifierImpl implements SimpleClassifier {
      */
     @Override
     public Serializable classify(Serializable source, Serializable defaultClassification, double strength) {
-        Map<Serializable, Double> probabilities = getClassificationProbabilities(source);
-        double max = 0.0;
-        Serializable category = null;
-
-        for (Map.Entry<Serializable, Double> entry : probabilities.entrySet()) {
-            if (entry.getValue() > max) {
-                max = entry.getValue();
-                category = entry.getKey();
+        return classifyNaively(view(null), source, defaultClassification);
+    }
+
+    /**
+     * This is what {@link #classify(Serializable, Serializable)} does, against a given
+     * view of the model, so that a batch can share one view.
+     *
+     * @param model                 the view of the model
+     * @param source                the source corpus for the classification operation
+     * @param defaultClassification the default classification
+     * @return the best-match classification
+     */
+    Serializable classify(ModelView model, Serializable source, Serializable defaultClassification) {
+        return classifyNaively(model, source, defaultClassification);
+    }
+
+    private Serializable classifyNaively(ModelView model, Serializable source, Serializable defaultClassification) {
+        Serializable[] categories = model.categories();
+        double[] scores = documentLogProbabilities(model, source);
+        double max = Double.NEGATIVE_INFINITY;
+        int best = -1;
+
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > max) {
+                max = scores[i];
+                best = i;
             }
         }
-        for (Map.Entry<Serializable, Double> entry : probabilities.entrySet()) {
-            if (entry.getKey().equals(category)) {
-                continue;
-            }
-
-            if ((entry.getValue() * getThreshold(category)) > probabilities.get(category)) {
+        if (best == -1) {
+            return null;
+        }
+        // p * threshold > best, in log space
+        double threshold = Math.log(getThreshold(categories[best]));
+        for (int i = 0; i < scores.length; i++) {
+            if (i != best && scores[i] + threshold > scores[best]) {
                 return defaultClassification;
             }
         }
-        return category;
+        return categories[best];
     }
 
     /**
@@ -122,77 +233,538 @@ public class SimpleClassifierImpl implements SimpleClassifier {
      */
     @Override
     public Map<Serializable, Double> getClassificationProbabilities(Serializable source) {
+        return getClassificationProbabilities(view(null), source);
+    }
+
+    private Map<Serializable, Double> getClassificationProbabilities(ModelView model, Serializable source) {
+        Serializable[] categories = model.categories();
+        double[] scores = documentLogProbabilities(model, source);
         Map<Serializable, Double> probabilities = new HashMap<>();
-        for (Serializable category : getCategories()) {
-            probabilities.put(category, documentProbability(source, category));
+        for (int i = 0; i < categories.length; i++) {
+            probabilities.put(categories[i], Math.exp(scores[i]));
         }
         return probabilities;
     }
 
     /**
-     * This method trains the classifier.
+     * This classifies the sources in parallel on the classifier's executor, against one
+     * view of the model shared by the whole batch.
+     *
+     * @param sources the source corpora for the classification operation
+     * @return the best-match classification of each source, in the order of the sources
+     */
+    @Override
+    public List<Serializable> classifyAll(Collection<? extends Serializable> sources) {
+        return mapAll(sources, (model, source) -> classify(model, source, "none"));
+    }
+
+    /**
+     * This computes the classification data of the sources in parallel on the
+     * classifier's executor, against one view of the model shared by the whole batch.
+     *
+     * @param sources the source corpora for the classification operation
+     * @return the classification data of each source, in the order of the sources
+     */
+    @Override
+    public List<Map<Serializable, Double>> getClassificationProbabilitiesAll(Collection<? extends Serializable> sources) {
+        return mapAll(sources, this::getClassificationProbabilities);
+    }
+
+    public Executor getExecutor() {
+        Executor current = executor;
+        return current == null ? ForkJoinPool.commonPool() : current;
+    }
+
+    /**
+     * Sets the executor that batch operations run on; null, the default, means the common
+     * fork-join pool. Any executor will do: a dedicated pool, or one thread per task.
+     *
+     * @param executor the executor
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /* applies the function to every source, a slice of the batch per task, keeping the order */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> mapAll(Collection<? extends Serializable> sources,
+                               BiFunction<ModelView, Serializable, T> function) {
+        ModelView model = view(null);
+        Serializable[] inputs = sources.toArray(new Serializable[0]);
+        Object[] results = new Object[inputs.length];
+        int slice = Math.max(1, inputs.length / (Runtime.getRuntime().availableProcessors() * 4));
+        Executor pool = getExecutor();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < inputs.length; start += slice) {
+            int from = start;
+            int to = Math.min(inputs.length, start + slice);
+            tasks.add(CompletableFuture.runAsync(() -> {
+                for (int i = from; i < to; i++) {
+                    results[i] = function.apply(model, inputs[i]);
+                }
+            }, pool));
+        }
+        join(tasks);
+        return (List<T>) Arrays.asList(results);
+    }
+
+    private static void join(List<CompletableFuture<Void>> tasks) {
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This trains the classifier with every document, on one worker per processor on the
+     * classifier's executor. Each worker counts its documents in a private primitive
+     * table, and only merges it into the model - one increment per distinct feature and
+     * category - when it holds {@link #getMergeThreshold()} distinct features, and at the
+     * end; until a worker merges, its documents are not visible to classification.
+     *
+     * @param documents the documents and their classifications
+     */
+    @Override
+    public void trainAll(Iterable<? extends TrainingDocument> documents) {
+        Iterator<? extends TrainingDocument> iterator = documents.iterator();
+        Executor pool = getExecutor();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+            tasks.add(CompletableFuture.runAsync(() -> trainFrom(iterator), pool));
+        }
+        join(tasks);
+    }
+
+    /* trains a worker's share of the documents, taking them from the iterator a block at a time */
+    private void trainFrom(Iterator<? extends TrainingDocument> iterator) {
+        FeatureTally tally = new FeatureTally();
+        TrainingDocument[] block = new TrainingDocument[64];
+        int taken;
+        do {
+            taken = 0;
+            synchronized (iterator) {
+                while (taken < block.length && iterator.hasNext()) {
+                    block[taken++] = iterator.next();
+                }
+            }
+            for (int i = 0; i < taken; i++) {
+                int ordinal = tally.document(block[i].getClassification());
+                forEachFeature(block[i].getSource(), feature -> tally.add(feature, ordinal));
+                if (tally.size() >= mergeThreshold) {
+                    merge(tally);
+                }
+            }
+        } while (taken == block.length);
+        merge(tally);
+    }
+
+    private void merge(FeatureTally tally) {
+        int stripe = gate.enter();
+        try {
+            // journaled first, so a model never holds an event the journal failed to take
+            TrainingJournal current = journal;
+            if (current != null) {
+                tally.appendTo(current);
+            }
+            tally.mergeInto(features, this::incrementCategory);
+        } finally {
+            gate.exit(stripe);
+        }
+        enforceBudget();
+    }
+
+    /**
+     * This copies the model as it stands into an immutable snapshot, which classification
+     * reads from then on instead of the live model, until the next snapshot replaces it.
+     * Training carries on while the copy is made, so, like the live model, a snapshot can
+     * hold part of a document that was being trained at the time.
+     */
+    public void publishSnapshot() {
+        snapshot = snapshotModel();
+    }
+
+    private ModelSnapshot snapshotModel() {
+        Serializable[] names = categories.keySet().toArray(new Serializable[0]);
+        int[] counts = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            counts[i] = categoryCount(names[i]);
+        }
+        return new ModelSnapshot(features, names, counts, totalCount(), hashed);
+    }
+
+    /**
+     * This saves the model in the {@link BinaryModel} format. The file is replaced
+     * atomically: a reader sees the old model or the new one, never part of either. With a
+     * journal, the model records the last journal event it holds, and the journal drops
+     * the segments the model makes redundant.
+     *
+     * @param path the model file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path path) throws IOException {
+        ModelSnapshot model;
+        long mark;
+        TrainingJournal current;
+        gate.close();
+        try {
+            model = snapshotModel();
+            current = journal;
+            mark = current == null ? checkpoint : current.checkpoint();
+        } finally {
+            gate.open();
+        }
+        BinaryModel.write(path, model, mark);
+        if (current != null) {
+            current.discardThrough(mark);
+        }
+    }
+
+    /**
+     * This replaces the model with one saved by {@link #save(Path)}. The file is mapped
+     * rather than read, so this takes about as long for a large model as for a small one;
+     * further training is counted on top of it, and the file is never modified. With a
+     * journal, the events the model does not hold are replayed on top of it.
+     *
+     * @param path the model file
+     * @throws IOException if the file cannot be read, or is not a model
+     */
+    public void load(Path path) throws IOException {
+        BinaryModel model = BinaryModel.open(path);
+        if (model.isBucketed() != hashed) {
+            throw new IOException("the model's features do not match this classifier's tokenizer");
+        }
+        gate.close();
+        try {
+            features = new OverlayFeatureStore(model, dataFactory.buildFeatureStore());
+            categories.clear();
+            total.reset();
+            categoryStore.clear();
+            Serializable[] names = model.categories();
+            for (int i = 0; i < names.length; i++) {
+                incrementCategory(names[i], model.categoryCount(i));
+            }
+            snapshot = null;
+            checkpoint = model.getCheckpoint();
+            if (journal != null) {
+                replay(journal);
+            }
+        } finally {
+            gate.open();
+        }
+    }
+
+    public TrainingJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * This records all further training in a journal, after replaying the events in it
+     * that the model does not hold yet: all of them, for a model that was not loaded. The
+     * classifier does not close the journal.
+     *
+     * @param journal the journal, or null to stop journaling
+     * @throws IOException if the journal cannot be read
+     */
+    public void setJournal(TrainingJournal journal) throws IOException {
+        gate.close();
+        try {
+            this.journal = null;
+            if (journal != null) {
+                replay(journal);
+            }
+            this.journal = journal;
+        } finally {
+            gate.open();
+        }
+    }
+
+    /* applies the journal's events after the checkpoint; the caller has closed the gate */
+    private void replay(TrainingJournal journal) throws IOException {
+        journal.replay(checkpoint, (sequence, category, documents, counts) -> {
+            counts.forEach((feature, count) -> features.incrementFeature(feature, category, count));
+            if (documents != 0) {
+                incrementCategory(category, documents);
+            }
+        });
+    }
+
+    /**
+     * This drops the published snapshot and stops any scheduled publication, so that
+     * classification reads the live model again.
+     */
+    public void discardSnapshot() {
+        setSnapshotInterval(0, TimeUnit.MILLISECONDS);
+        snapshot = null;
+    }
+
+    public synchronized long getSnapshotInterval(TimeUnit unit) {
+        return unit.convert(snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This publishes a snapshot now, on the calling thread, and then again on every
+     * interval, on a shared daemon thread. An interval of zero stops the schedule, leaving
+     * the last snapshot in place; until it is stopped, the schedule keeps the classifier
+     * reachable. A scheduled publication that fails is logged and counted, and the
+     * schedule carries on.
+     *
+     * @param interval the time between snapshots
+     * @param unit     the unit of the interval
+     * @throws UnsupportedOperationException if the feature store cannot be snapshotted
+     */
+    public synchronized void setSnapshotInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval must not be negative: " + interval);
+        }
+        if (publication != null) {
+            publication.cancel(false);
+            publication = null;
+        }
+        snapshotInterval = unit.toMillis(interval);
+        if (snapshotInterval > 0) {
+            try {
+                // a store that cannot be snapshotted fails here, rather than in the background
+                publishSnapshot();
+            } catch (RuntimeException e) {
+                snapshotInterval = 0;
+                throw e;
+            }
+            publication = Publisher.SCHEDULER.scheduleWithFixedDelay(this::publishScheduledSnapshot,
+                    snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the number of scheduled publications that failed
+     */
+    public long getFailedSnapshotCount() {
+        return failedSnapshots.get();
+    }
+
+    /* an exception would cancel every later run of the schedule, so it is logged instead */
+    private void publishScheduledSnapshot() {
+        try {
+            publishSnapshot();
+        } catch (RuntimeException e) {
+            failedSnapshots.incrementAndGet();
+            Publisher.LOG.log(Level.WARNING, "scheduled snapshot failed; the last snapshot stays in place", e);
+        }
+    }
+
+    public int getMergeThreshold() {
+        return mergeThreshold;
+    }
+
+    /**
+     * Sets the number of distinct features a bulk-training worker counts before it merges
+     * them into the model. Larger batches mean fewer, cheaper merges and more memory per
+     * worker.
+     *
+     * @param mergeThreshold the number of distinct features
+     */
+    public void setMergeThreshold(int mergeThreshold) {
+        if (mergeThreshold < 1) {
+            throw new IllegalArgumentException("mergeThreshold must be positive: " + mergeThreshold);
+        }
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    public int getFeatureBudget() {
+        return featureBudget;
+    }
+
+    /**
+     * This bounds the number of distinct features the model holds. Whenever training takes
+     * the model past the budget, a prune pass on the classifier's executor removes the
+     * features counted least, the ones counted longest ago first among equals, until a
+     * tenth of the budget is free again. Neither training nor classification waits for
+     * it. Pruning is not journaled, so a model rebuilt from a journal holds every feature.
+     *
+     * <p>
+     * Only a store that can prune has a budget: the default heap store does, while the
+     * map, off-heap and count-min stores do not.
+     *
+     * @param featureBudget the number of features, or 0 for no limit
+     * @throws UnsupportedOperationException if the feature store cannot remove features
+     */
+    public void setFeatureBudget(int featureBudget) {
+        if (featureBudget < 0) {
+            throw new IllegalArgumentException("featureBudget must not be negative: " + featureBudget);
+        }
+        // a store that cannot prune fails here, rather than in the background
+        if (featureBudget > 0 && !features.canPrune()) {
+            throw new UnsupportedOperationException(features.getClass().getName() + " cannot remove features");
+        }
+        this.featureBudget = featureBudget;
+        enforceBudget();
+    }
+
+    /**
+     * @return the number of prune passes the feature budget has caused
+     */
+    public long getPruneCount() {
+        return prunes.get();
+    }
+
+    /**
+     * @return the number of features the prune passes have removed
+     */
+    public long getEvictedFeatureCount() {
+        return evictions.get();
+    }
+
+    /* starts a prune pass, unless the model is within budget or a pass is under way */
+    private void enforceBudget() {
+        int budget = featureBudget;
+        if (budget > 0 && features.size() > budget && pruning.compareAndSet(false, true)) {
+            try {
+                getExecutor().execute(this::prune);
+            } catch (RejectedExecutionException e) {
+                pruning.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void prune() {
+        try {
+            int budget = featureBudget;
+            if (budget > 0) {
+                evictions.addAndGet(features.prune(budget - budget / 10));
+                prunes.incrementAndGet();
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    /**
+     * This method trains the classifier. It is safe to call from many threads at once:
+     * each call totals its document's features in its thread's reusable tally, then adds
+     * each distinct feature to the model once. With a journal, it also queues one event,
+     * without waiting for the disk.
      *
      * @param source         The source text for the training operation
      * @param classification The classification for which to train
      */
     @Override
     public void train(Serializable source, Serializable classification) {
-        List<Serializable> features = getFeatures(source);
-        features.forEach(f -> incrementFeature(f, classification));
-        incrementCategory(classification);
+        FeatureTally tally = acquireTally();
+        try {
+            int ordinal = tally.document(classification);
+            forEachFeature(source, feature -> tally.add(feature, ordinal));
+            merge(tally);
+        } finally {
+            tally.clear();
+            tally.busy = false;
+        }
+    }
+
+    /* a nested train() on the same thread - from a store or tokenizer callback - gets a throwaway tally */
+    private static FeatureTally acquireTally() {
+        FeatureTally tally = TALLY.get();
+        if (tally.busy) {
+            tally = new FeatureTally();
+        }
+        tally.busy = true;
+        return tally;
+    }
+
+    /* streams the same features getFeatures() lists, without building the list */
+    private void forEachFeature(Serializable source, Consumer<Serializable> action) {
+        if (hashed) {
+            ((HashingTokenizer) tokenizer).hash(text(source), feature -> action.accept(HashingTokenizer.bucket(feature)));
+        } else {
+            tokenizer.tokenize(text(source), token -> action.accept(token.toString()));
+        }
+    }
+
+    /* the source's features, for scoring as they are tokenized */
+    ScoringEngine.FeatureSource features(Serializable source) {
+        return action -> forEachFeature(source, action);
+    }
+
+    private static CharSequence text(Serializable source) {
+        return source instanceof CharSequence ? (CharSequence) source : source.toString();
     }
 
     /**
-     * This method returns the tokenized features for a given source object.
-     * It caches the data in a ThreadLocal, which may yield performance enhancements.
+     * This method returns the tokenized features for a given source object. The features
+     * of a {@link HashingTokenizer} come back as their buckets, which is what is counted.
      *
      * @param source The source to tokenize
      * @return The tokenized source
      */
     List<Serializable> getFeatures(Serializable source) {
-        List<Serializable> features;
-        if (source.equals(lastData.get())) {
-            features = lastFeatures.get();
-        } else {
-            features = tokenizer.tokenize(source);
-            lastFeatures.set(features);
+        if (hashed) {
+            List<Serializable> buckets = new ArrayList<>();
+            forEachFeature(source, buckets::add);
+            return buckets;
+        }
+        return tokenizer.tokenize(source);
+    }
+
+    /**
+     * This captures the categories and their counts as they stand, for one scoring pass:
+     * the published snapshot if there is one, and otherwise the live model.
+     *
+     * @param category a category the view must include even if it has never been trained;
+     *                 may be null
+     * @return a view of the model
+     */
+    ModelView view(Serializable category) {
+        ModelSnapshot published = snapshot;
+        if (published != null && (category == null || Arrays.asList(published.categories()).contains(category))) {
+            return published;
         }
-        lastData.set(source);
-        return features;
+        List<Serializable> names = new ArrayList<>(categories.keySet());
+        if (category != null && !names.contains(category)) {
+            names.add(category);
+        }
+        Serializable[] snapshot = names.toArray(new Serializable[0]);
+        int[] counts = new int[snapshot.length];
+        int total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            counts[i] = categoryCount(snapshot[i]);
+            total += counts[i];
+        }
+        return new LiveView(features, snapshot, counts, total);
     }
 
-    private void incrementFeature(Serializable feature, Serializable category) {
-        Feature f = features.computeIfAbsent(feature, Feature::new);
-        features.put(feature, f);
-        f.incrementCategoryCount(category);
+    /**
+     * @return whether feature probabilities are normalized across categories, which the
+     * Fisher method does
+     */
+    boolean normalizesFeatureProbabilities() {
+        return false;
     }
 
-    private void incrementCategory(Serializable category) {
-        categories.put(category, categories.getOrDefault(category, 0) + 1);
+    private void incrementCategory(Serializable category, int documents) {
+        CategoryCount count = categories.get(category);
+        if (count == null) {
+            count = categories.computeIfAbsent(category, c -> new CategoryCount());
+        }
+        count.add(documents);
+        total.add(documents);
+        count.mirror(category, categoryStore);
     }
 
     // the number of times a feature has occurred in a category
     int featureCount(Serializable feature, Serializable category) {
-        Feature f = features.get(feature);
-        if (f == null) {
-            return 0;
-        }
-        return f.getCountForCategory(category);
+        return features.featureCount(feature, category);
     }
 
     private int categoryCount(Serializable category) {
-        if (categories.containsKey(category)) {
-            return categories.get(category);
-        }
-        return 0;
+        CategoryCount count = categories.get(category);
+        return count == null ? 0 : count.intValue();
     }
 
     private int totalCount() {
-        int sum = 0;
-        for (Integer i : categories.values()) {
-            sum += i;
-        }
-        return sum;
+        return total.intValue();
     }
 
     Set<Serializable> getCategories() {
@@ -209,10 +781,7 @@ public class SimpleClassifierImpl implements SimpleClassifier {
     private double weightedProb(Serializable feature, Serializable category, double weight, double assumedProbability) {
         double basicProbability = featureProb(feature, category);
 
-        double totals = 0;
-        for (Serializable cat : getCategories()) {
-            totals += featureCount(feature, cat);
-        }
+        double totals = features.featureTotal(feature);
         return ((weight * assumedProbability) + (totals * basicProbability)) / (weight + totals);
     }
 
@@ -226,12 +795,15 @@ public class SimpleClassifierImpl implements SimpleClassifier {
 
     /* naive bayes, very naive - and not what we usually need. */
     private double documentProbability(Serializable source, Serializable category) {
-        List<Serializable> documentProbabilityFeatures = getFeatures(source);
-        double p = 1.0;
-        for (Serializable f : documentProbabilityFeatures) {
-            p *= weightedProb(f, category);
-        }
-        return p;
+        ModelView model = view(category);
+        double[] scores = documentLogProbabilities(model, source);
+        return Math.exp(scores[Arrays.asList(model.categories()).indexOf(category)]);
+    }
+
+    private double[] documentLogProbabilities(ModelView model, Serializable source) {
+        double[] scores = new double[model.categories().length];
+        ScoringEngine.weightedLogProbabilities(model, features(source), normalizesFeatureProbabilities(), scores);
+        return scores;
     }
 
     double prob(Serializable corpus, Serializable category) {
@@ -265,4 +837,84 @@ public class SimpleClassifierImpl implements SimpleClassifier {
         }
         return 1.0;
     }
+
+    /**
+     * A category's document count, striped so that concurrent trainers do not contend on
+     * it. The factory's map is only a mirror of it: one trainer at a time copies the count
+     * over, and the others carry on without waiting, leaving the copier to notice their
+     * increments when it finishes.
+     */
+    static final class CategoryCount extends LongAdder {
+        private final AtomicBoolean mirroring = new AtomicBoolean();
+
+        void mirror(Serializable category, Map<Serializable, Integer> store) {
+            while (!mirroring.get() && mirroring.compareAndSet(false, true)) {
+                int written = intValue();
+                try {
+                    store.put(category, written);
+                } finally {
+                    mirroring.set(false);
+                }
+                if (intValue() == written) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* holds the publication thread, which is only started if a schedule is set */
+    private static final class Publisher {
+        static final Logger LOG = Logger.getLogger(SimpleClassifierImpl.class.getName());
+        static final ScheduledExecutorService SCHEDULER = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "bayes-snapshot-publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The live model, with its category counts and largest feature total as they stood
+     * when the view was made. Features keep counting while the view is read, so their
+     * totals are capped at that largest total, which keeps it a bound for the whole pass.
+     */
+    private static final class LiveView implements ModelView {
+        private final FeatureStore features;
+        private final Serializable[] categories;
+        private final int[] categoryCounts;
+        private final int totalCount;
+        private final int maxFeatureTotal;
+
+        LiveView(FeatureStore features, Serializable[] categories, int[] categoryCounts, int totalCount) {
+            this.features = features;
+            this.categories = categories;
+            this.categoryCounts = categoryCounts;
+            this.totalCount = totalCount;
+            this.maxFeatureTotal = features.maxFeatureTotal();
+        }
+
+        @Override
+        public Serializable[] categories() {
+            return categories;
+        }
+
+        @Override
+        public int categoryCount(int index) {
+            return categoryCounts[index];
+        }
+
+        @Override
+        public int totalCount() {
+            return totalCount;
+        }
+
+        @Override
+        public int featureCounts(Serializable feature, int[] counts) {
+            return Math.min(features.featureCounts(feature, categories, counts), maxFeatureTotal);
+        }
+
+        @Override
+        public int maxFeatureTotal() {
+            return maxFeatureTotal;
+        }
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This lets many trainers into the model at once and lets one thread close it to them,
+ * for a save or a load, once the trainers already in have left. A trainer counts itself
+ * in on a stripe chosen by its thread and only reads the closed flag, so trainers do not
+ * contend on a shared lock word; closing pays instead, by waiting on every stripe.
+ */
+final class TrainingGate {
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+    // a stripe per 128 bytes, so that trainers on different stripes do not share a cache line
+    private static final int PAD = 16;
+    private final AtomicLongArray active = new AtomicLongArray(STRIPES * PAD);
+    private final ReentrantLock closing = new ReentrantLock();
+    private volatile boolean closed;
+
+    /**
+     * Waits while the gate is closed, then counts the caller in.
+     *
+     * @return the stripe to hand to {@link #exit(int)}
+     */
+    int enter() {
+        int stripe = stripe();
+        while (true) {
+            if (closed) {
+                awaitOpen();
+            }
+            active.incrementAndGet(stripe);
+            if (!closed) {
+                return stripe;
+            }
+            active.decrementAndGet(stripe);
+        }
+    }
+
+    /**
+     * @param stripe the stripe {@link #enter()} returned
+     */
+    void exit(int stripe) {
+        active.decrementAndGet(stripe);
+    }
+
+    /**
+     * Closes the gate and waits for the trainers inside to leave. The caller must not be
+     * inside, and must call {@link #open()} afterwards.
+     */
+    void close() {
+        closing.lock();
+        closed = true;
+        for (int stripe = 0; stripe < STRIPES * PAD; stripe += PAD) {
+            while (active.get(stripe) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Reopens the gate closed by {@link #close()}, releasing the trainers waiting on it.
+     */
+    void open() {
+        synchronized (this) {
+            closed = false;
+            notifyAll();
+        }
+        closing.unlock();
+    }
+
+    private synchronized void awaitOpen() {
+        boolean interrupted = false;
+        while (closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int stripe() {
+        int h = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & (STRIPES - 1)) * PAD;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.bayes.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of training events, so that training since the last saved model
+ * survives the process. Each event is a category, a number of documents and the counts of
+ * the features trained into it.
+ * <p>
+ * {@link #append(Serializable, int, Map)} only encodes the event and queues it. A single
+ * writer thread drains the queue, writes everything it found in one go and forces it to
+ * disk with one fsync - a group commit - so callers never wait on the disk unless they
+ * ask to with {@link #awaitDurable(long)}, or the queue fills up.
+ * <p>
+ * The log is a directory of segment files, each named after the sequence number of its
+ * first record. A record is its length, a CRC32 of what follows, its sequence number, then
+ * the event. Replay stops at the first torn or corrupt record, which a crash can leave at
+ * the end of the last segment written; a segment that does not carry on from the record
+ * before it means events were lost in between, and fails replay rather than skipping
+ * over them. A {@link #checkpoint()}
+ * starts a new segment, so that {@link #discardThrough(long)} can delete whole segments
+ * once a saved model holds their records.
+ */
+public class TrainingJournal implements Closeable {
+    private static final String SUFFIX = ".journal";
+    private static final int QUEUE_SIZE = 65536;
+    private static final byte STRING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte SERIALIZED = 2;
+    // queued to tell the writer to start a new segment, and to stop
+    private static final byte[] ROLL = new byte[0];
+    private static final byte[] STOP = new byte[0];
+
+    private final Path directory;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private final Object durability = new Object();
+    private long sequence;
+    private long durable;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private FileChannel channel;
+
+    /**
+     * Opens the journal in the directory, creating it if need be. Existing segments are
+     * left as they are, to be replayed; new records go to a new segment.
+     *
+     * @param directory the directory of segment files
+     * @throws IOException if the directory cannot be read or written, or events are
+     *                     missing between its segments
+     */
+    public TrainingJournal(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        // a checkpoint can leave nothing but an empty segment, whose name still carries the sequence
+        long last = readAll((seq, category, documents, features) -> {
+        }) - 1;
+        sequence = last;
+        durable = last;
+        channel = open(sequence + 1);
+        writer = new Thread(this::write, "training-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Receives the events of the journal, in order.
+     */
+    public interface Replay {
+        /**
+         * @param sequence  the event's sequence number
+         * @param category  the category trained into
+         * @param documents the number of documents trained
+         * @param features  the features trained, with their counts
+         */
+        void event(long sequence, Serializable category, int documents, Map<Serializable, Integer> features);
+    }
+
+    /**
+     * Queues an event. This blocks only when the writer has fallen a whole queue behind.
+     *
+     * @param category  the category trained into
+     * @param documents the number of documents trained
+     * @param features  the features trained, each with its count at index 0
+     * @return the event's sequence number, for {@link #awaitDurable(long)}
+     */
+    public long append(Serializable category, int documents, Map<Serializable, int[]> features) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + features.size() * 12);
+        Encoder out = new Encoder(bytes);
+        // length, checksum and sequence number are filled in below
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(0);
+        out.writeKey(category);
+        out.writeInt(documents);
+        out.writeInt(features.size());
+        features.forEach((feature, count) -> {
+            out.writeKey(feature);
+            out.writeInt(count[0]);
+        });
+        byte[] record = bytes.toByteArray();
+        synchronized (queue) {
+            long seq = ++sequence;
+            ByteBuffer header = ByteBuffer.wrap(record);
+            header.putInt(0, record.length - 8);
+            header.putLong(8, seq);
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+            header.putInt(4, (int) crc.getValue());
+            enqueue(record);
+            return seq;
+        }
+    }
+
+    /**
+     * Marks a point in the journal, for a model that holds every event appended so far:
+     * later events go to a new segment. The caller has to keep training out until this
+     * returns, for the mark to be exact.
+     *
+     * @return the sequence number of the last event before the mark
+     */
+    public long checkpoint() {
+        synchronized (queue) {
+            enqueue(ROLL);
+            return sequence;
+        }
+    }
+
+    /**
+     * Deletes the segments that only hold events up to and including the sequence number,
+     * once they are durable; a model saved at that checkpoint no longer needs them.
+     *
+     * @param sequence a sequence number from {@link #checkpoint()}
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void discardThrough(long sequence) throws IOException {
+        awaitDurable(sequence);
+        List<Path> segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (first(segments.get(i + 1)) <= sequence + 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    /**
+     * Replays every event after the sequence number that is on disk.
+     *
+     * @param after  the sequence number to replay after; 0 for everything
+     * @param replay the receiver of the events
+     * @throws IOException if the journal cannot be read, or events are missing between
+     *                     its segments
+     */
+    public void replay(long after, Replay replay) throws IOException {
+        readAll((seq, category, documents, features) -> {
+            if (seq > after) {
+                replay.event(seq, category, documents, features);
+            }
+        });
+    }
+
+    /**
+     * Waits until every event up to the sequence number has been forced to disk.
+     *
+     * @param sequence a sequence number from {@link #append(Serializable, int, Map)}
+     * @throws IOException if the writer has failed
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        synchronized (durability) {
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw failure;
+                }
+                try {
+                    durability.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for the journal", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the last event forced to disk
+     */
+    public long getDurableSequence() {
+        synchronized (durability) {
+            return durable;
+        }
+    }
+
+    /**
+     * Forces every queued event to disk and stops the writer.
+     *
+     * @throws IOException if the writer has failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            enqueue(STOP);
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the journal", e);
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void enqueue(byte[] record) {
+        if (closed) {
+            throw new IllegalStateException("the journal is closed");
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while appending to the journal", e);
+        }
+    }
+
+    /* the writer thread: everything queued since the last pass becomes one write and one fsync */
+    private void write() {
+        List<byte[]> batch = new ArrayList<>();
+        long written = durable;
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch);
+            try {
+                for (byte[] record : batch) {
+                    if (record == STOP) {
+                        stopping = true;
+                    } else if (record == ROLL) {
+                        channel.force(false);
+                        channel.close();
+                        channel = open(written + 1);
+                    } else {
+                        ByteBuffer buffer = ByteBuffer.wrap(record);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        written = ByteBuffer.wrap(record).getLong(8);
+                    }
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+            }
+            batch.clear();
+            synchronized (durability) {
+                if (failure == null) {
+                    durable = written;
+                }
+                durability.notifyAll();
+            }
+        }
+    }
+
+    /* a segment that already has this name can only hold a torn record, or nothing */
+    private FileChannel open(long first) throws IOException {
+        Path segment = directory.resolve(String.format("%020d%s", first, SUFFIX));
+        return FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        // the names are zero-padded, so they sort by sequence number
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long first(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /*
+     * reads every segment in order and returns the sequence number the next record would
+     * take; each segment has to start where the records before it left off
+     */
+    private long readAll(Replay replay) throws IOException {
+        long next = -1;
+        for (Path segment : segments()) {
+            long first = first(segment);
+            if (next >= 0 && first != next) {
+                throw new IOException("journal segment " + segment.getFileName()
+                        + " does not follow sequence " + (next - 1) + "; events are missing");
+            }
+            next = read(segment, first, replay);
+        }
+        return next < 0 ? 1 : next;
+    }
+
+    /*
+     * reads a segment's records, up to the first incomplete, corrupt or out-of-sequence
+     * one, and returns the sequence number after the last one read
+     */
+    private static long read(Path segment, long first, Replay replay) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        long next = first;
+        while (data.remaining() >= 16) {
+            int length = data.getInt(data.position());
+            if (length < 8 || length > data.remaining() - 8) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), data.position() + 8, length);
+            if ((int) crc.getValue() != data.getInt(data.position() + 4)) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.wrap(data.array(), data.position() + 8, length).slice();
+            long seq = record.getLong();
+            if (seq != next) {
+                break;
+            }
+            Serializable category = readKey(record);
+            int documents = record.getInt();
+            int count = record.getInt();
+            Map<Serializable, Integer> features = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                Serializable feature = readKey(record);
+                features.put(feature, record.getInt());
+            }
+            replay.event(seq, category, documents, features);
+            data.position(data.position() + 8 + length);
+            next++;
+        }
+        return next;
+    }
+
+    private static Serializable readKey(ByteBuffer record) throws IOException {
+        byte type = record.get();
+        if (type == INTEGER) {
+            return record.getInt();
+        }
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        if (type == STRING) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Serializable) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("unknown class in the journal: " + e.getMessage(), e);
+        }
+    }
+
+    /* a DataOutputStream that cannot fail, writing to memory */
+    private static final class Encoder {
+        private final ByteArrayOutputStream out;
+
+        Encoder(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void writeInt(int value) {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeKey(Serializable key) {
+            if (key instanceof Integer) {
+                out.write(INTEGER);
+                writeInt((Integer) key);
+                return;
+            }
+            byte[] bytes;
+            if (key instanceof String) {
+                out.write(STRING);
+                bytes = ((String) key).getBytes(StandardCharsets.UTF_8);
+            } else {
+                out.write(SERIALIZED);
+                ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+                try (ObjectOutputStream objects = new ObjectOutputStream(serialized)) {
+                    objects.writeObject(key);
+                } catch (IOException e) {
+                    throw new RuntimeException("Should not happen: " + e.getMessage(), e);
+                }
+                bytes = serialized.toByteArray();
+            }
+            writeInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -17,9 +17,43 @@
 package com.enigmastation.ml.bayes.impl;
 
 
+import com.enigmastation.ml.bayes.ClassifierDataFactory;
+import com.enigmastation.ml.bayes.Feature;
+import com.enigmastation.ml.bayes.FeatureStore;
+import com.enigmastation.ml.bayes.TrainingDocument;
+import com.enigmastation.ml.tokenizer.TokenSink;
+import com.enigmastation.ml.tokenizer.Tokenizer;
+import com.enigmastation.ml.tokenizer.impl.HashingTokenizer;
+import com.enigmastation.ml.tokenizer.impl.LimitingTokenizer;
+import com.enigmastation.ml.tokenizer.impl.PorterTokenizer;
+import com.enigmastation.ml.tokenizer.impl.SimpleTokenizer;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 public class ClassifierTest {
     @Test
@@ -66,6 +100,878 @@ public class ClassifierTest {
         assertEquals(cl.classify("quick money", "unknown"), "bad");
     }
 
+    @Test
+    public void testHashedClassification() {
+        SimpleClassifierImpl cl = new SimpleClassifierImpl(new HashingTokenizer(new PorterTokenizer(), 16, 2, true));
+        train(cl);
+        assertEquals(cl.classify("quick rabbit", "unknown"), "good");
+        assertEquals(cl.classify("quick money", "unknown"), "bad");
+        FisherClassifierImpl fc = new FisherClassifierImpl(new HashingTokenizer(new PorterTokenizer(), 16));
+        train(fc);
+        assertEquals(fc.classify("quick rabbit"), "good");
+        assertEquals(fc.classify("quick money"), "bad");
+
+        HashedFeatureStore store = new HashedFeatureStore(16);
+        store.incrementFeature(3, "good", 2);
+        store.incrementFeature(~3, "bad");
+        store.incrementFeature(19, "bad");
+        assertEquals(store.featureCount(3, "bad"), 2);
+        assertEquals(store.featureTotal(3), 4);
+    }
+
+    @Test
+    public void testLimitedClassification() {
+        LimitingTokenizer limits = new LimitingTokenizer(new PorterTokenizer(), 0, 2);
+        FisherClassifierImpl cl = new FisherClassifierImpl(limits);
+        train(cl);
+        assertEquals(cl.getFeatures("quick rabbit jumps fences").size(), 2);
+        assertEquals(cl.classify("quick rabbit jumps fences"), "good");
+        assertTrue(limits.getTruncatedCount() > 0);
+    }
+
+    @Test
+    public void testPrimitiveFeatureStore() {
+        PrimitiveFeatureStore store = new PrimitiveFeatureStore();
+        for (int category = 0; category < 5; category++) {
+            for (int feature = 0; feature < 10000; feature++) {
+                for (int i = 0; i <= (feature + category) % 3; i++) {
+                    store.incrementFeature("f" + feature, "c" + category);
+                }
+            }
+        }
+        assertEquals(store.size(), 10000);
+        assertEquals(store.categoryCount(), 5);
+        for (int category = 0; category < 5; category++) {
+            int ordinal = store.categoryOrdinal("c" + category);
+            assertEquals(store.category(ordinal), "c" + category);
+            for (int feature = 0; feature < 10000; feature++) {
+                assertEquals(store.featureCount("f" + feature, ordinal), (feature + category) % 3 + 1);
+            }
+        }
+        int maxTotal = 0;
+        for (int feature = 0; feature < 10000; feature++) {
+            int total = 0;
+            for (int category = 0; category < 5; category++) {
+                total += (feature + category) % 3 + 1;
+            }
+            assertEquals(store.featureTotal("f" + feature), total);
+            maxTotal = Math.max(maxTotal, total);
+        }
+        assertEquals(store.maxFeatureTotal(), maxTotal);
+        assertEquals(store.featureTotal("missing"), 0);
+        assertEquals(store.featureCount("f1", "c9"), 0);
+        assertEquals(store.featureCount("missing", "c1"), 0);
+        store.clear();
+        assertEquals(store.featureCount("f1", "c1"), 0);
+        assertEquals(store.maxFeatureTotal(), 0);
+    }
+
+    @Test
+    public void testMapFeatureStore() throws Exception {
+        MapFeatureStore store = new MapFeatureStore();
+        store.incrementFeature("quick", "good", 3);
+        store.incrementFeature("quick", "bad");
+        store.incrementFeature("rabbit", "good");
+        assertEquals(store.featureTotal("quick"), 4);
+        assertEquals(store.featureTotal("missing"), 0);
+        assertEquals(store.maxFeatureTotal(), 4);
+        Map<Serializable, Integer> totals = new HashMap<>();
+        store.forEachFeature(new Serializable[]{"good"}, (feature, counts, total) -> totals.put(feature, total));
+        assertEquals(totals.get("quick"), Integer.valueOf(4));
+        assertEquals(totals.get("rabbit"), Integer.valueOf(1));
+
+        // a supplied map may hold more than it shows, as a passivating cache does
+        MapFeatureStore supplied = new MapFeatureStore(new HashMap<>());
+        assertEquals(supplied.maxFeatureTotal(), Integer.MAX_VALUE);
+        supplied.incrementFeature("quick", "good", 2);
+        supplied.incrementFeature("quick", "bad");
+        assertEquals(supplied.featureTotal("quick"), 3);
+        assertEquals(supplied.maxFeatureTotal(), Integer.MAX_VALUE);
+        supplied.clear();
+        assertEquals(supplied.maxFeatureTotal(), 0);
+
+        // the running total is rebuilt when a feature is read back
+        Feature feature = new Feature("quick");
+        feature.incrementCategoryCount("good", 2);
+        feature.incrementCategoryCount("bad", 5);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(feature);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Feature copy = (Feature) in.readObject();
+            assertEquals(copy, feature);
+            assertEquals(copy.getTotal(), 7);
+        }
+    }
+
+    @Test
+    public void testTrainingAfterFailure() {
+        SimpleTokenizer words = new SimpleTokenizer();
+        SimpleClassifierImpl cl = new SimpleClassifierImpl(new Tokenizer() {
+            @Override
+            public List<Serializable> tokenize(Serializable source) {
+                return words.tokenize(source);
+            }
+
+            @Override
+            public void tokenize(CharSequence source, TokenSink sink) {
+                words.tokenize(source, token -> {
+                    if (token.toString().equals("boom")) {
+                        throw new IllegalStateException("tokenizer failed");
+                    }
+                    sink.accept(token);
+                });
+            }
+        });
+        try {
+            cl.train("quick boom", "bad");
+            assertTrue(false, "trained through a failing tokenizer");
+        } catch (IllegalStateException expected) {
+            // the thread's tally starts the next document clean
+        }
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            large.append("word").append(i).append(' ');
+        }
+        cl.train(large.toString(), "good");
+        cl.train("quick rabbit", "good");
+        assertEquals(cl.featureCount("quick", "bad"), 0);
+        assertEquals(cl.featureCount("quick", "good"), 1);
+        assertEquals(cl.featureCount("word42", "good"), 1);
+        assertTrue(!cl.categories.containsKey("bad"));
+        assertEquals(cl.categories.get("good").intValue(), 2);
+    }
+
+    @Test
+    public void testConcurrentTraining() throws Exception {
+        SimpleClassifierImpl cl = new SimpleClassifierImpl(new SimpleTokenizer());
+        int threads = 8;
+        int documents = 5000;
+        ExecutorService service = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(service.submit(() -> {
+                    for (int i = 0; i < documents; i++) {
+                        cl.train("apple banana apple w" + (i % 100), "good");
+                        cl.train("banana cherry", "bad");
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            service.shutdown();
+        }
+        int total = threads * documents;
+        assertEquals(cl.featureCount("apple", "good"), 2 * total);
+        assertEquals(cl.featureCount("banana", "good"), total);
+        assertEquals(cl.featureCount("banana", "bad"), total);
+        assertEquals(cl.featureCount("cherry", "good"), 0);
+        assertEquals(cl.featureCount("w42", "good"), total / 100);
+        assertEquals(cl.categories.get("good").intValue(), total);
+        assertEquals(cl.categories.get("bad").intValue(), total);
+    }
+
+    @Test
+    public void testLongDocument() {
+        SimpleClassifierImpl cl = getTrainedClassifier();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("quick rabbit ");
+        }
+        // a product of 2000 probabilities underflows; the scores are kept as logarithms
+        assertEquals(cl.classify(sb.toString(), "unknown"), "good");
+        assertEquals(cl.classify(sb.toString().replace("rabbit", "money"), "unknown"), "bad");
+    }
+
+    @Test
+    public void testBatchClassification() {
+        String[] words = {"quick", "rabbit", "money", "casino", "fox", "water", "pharmaceuticals", "fences"};
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            batch.add(words[i % words.length] + " " + words[(i / 3) % words.length] + " " + words[(i / 7) % words.length]);
+        }
+        for (SimpleClassifierImpl cl : new SimpleClassifierImpl[]{getTrainedClassifier(), getTrainedFisher()}) {
+            List<Serializable> classifications = cl.classifyAll(batch);
+            List<Map<Serializable, Double>> probabilities = cl.getClassificationProbabilitiesAll(batch);
+            ExecutorService service = Executors.newFixedThreadPool(3);
+            try {
+                cl.setExecutor(service);
+                assertEquals(cl.classifyAll(batch), classifications);
+            } finally {
+                service.shutdown();
+            }
+            assertEquals(classifications.size(), batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(classifications.get(i), cl.classify(batch.get(i)));
+                assertEquals(probabilities.get(i), cl.getClassificationProbabilities(batch.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void testNestedScoring() {
+        FisherClassifierImpl cl = getTrainedFisher();
+        ModelView model = cl.view(null);
+        FisherClassifierImpl other = getTrainedFisher();
+        other.train("the quick brown fox jumps", "good");
+        other.train("make quick money in the online casino", "bad");
+        ModelView otherModel = other.view(null);
+        double[] expected = new double[model.categories().length];
+        ScoringEngine.fisherProbabilities(model, cl.features("quick rabbit"), expected);
+        double[] inner = new double[expected.length];
+        ScoringEngine.fisherProbabilities(otherModel, cl.features("quick money"), inner);
+
+        // scoring another document midway through a score, on the same thread, disturbs neither
+        double[] outer = new double[expected.length];
+        double[] nested = new double[expected.length];
+        ScoringEngine.fisherProbabilities(model, action -> cl.features("quick rabbit").forEach(feature -> {
+            ScoringEngine.fisherProbabilities(otherModel, cl.features("quick money"), nested);
+            action.accept(feature);
+        }), outer);
+        assertEquals(outer, expected);
+        assertEquals(nested, inner);
+
+        List<Serializable> scored = new ArrayList<>();
+        ModelView recording = new ModelView() {
+            @Override
+            public Serializable[] categories() {
+                return model.categories();
+            }
+
+            @Override
+            public int categoryCount(int index) {
+                return model.categoryCount(index);
+            }
+
+            @Override
+            public int totalCount() {
+                return model.totalCount();
+            }
+
+            @Override
+            public int featureCounts(Serializable feature, int[] counts) {
+                scored.add(feature);
+                return model.featureCounts(feature, counts);
+            }
+        };
+        ScoringEngine.fisherBest(recording, action -> cl.features("quick rabbit").forEach(feature -> {
+            ScoringEngine.fisherBest(otherModel, cl.features("quick money"), new double[expected.length], 1);
+            action.accept(feature);
+        }), new double[expected.length], 100);
+        assertEquals(scored, cl.getFeatures("quick rabbit"));
+    }
+
+    @Test
+    public void testBulkTraining() {
+        String[] words = {"quick", "rabbit", "money", "casino", "fox", "water", "pharmaceuticals", "fences"};
+        List<TrainingDocument> documents = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            documents.add(new TrainingDocument(words[i % words.length] + " " + words[(i / 3) % words.length] + " word" + i,
+                    i % 3 == 0 ? "bad" : "good"));
+        }
+        SimpleClassifierImpl expected = new SimpleClassifierImpl();
+        for (TrainingDocument document : documents) {
+            expected.train(document.getSource(), document.getClassification());
+        }
+        SimpleClassifierImpl bulk = new SimpleClassifierImpl();
+        bulk.setMergeThreshold(100);
+        bulk.trainAll(documents);
+        SimpleClassifierImpl streamed = new SimpleClassifierImpl();
+        streamed.trainAll(documents.stream());
+        for (SimpleClassifierImpl cl : new SimpleClassifierImpl[]{bulk, streamed}) {
+            for (String word : new String[]{"quick", "casino", "water", "word17", "word1999"}) {
+                for (String category : new String[]{"good", "bad"}) {
+                    assertEquals(cl.featureCount(word, category), expected.featureCount(word, category));
+                }
+            }
+            assertEquals(cl.getClassificationProbabilities("quick money fences"),
+                    expected.getClassificationProbabilities("quick money fences"));
+        }
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        for (SimpleClassifierImpl cl : new SimpleClassifierImpl[]{getTrainedClassifier(), getTrainedFisher(),
+                new SimpleClassifierImpl(new HashingTokenizer(new PorterTokenizer(), 16, 1, true))}) {
+            train(cl);
+            Map<Serializable, Double> live = cl.getClassificationProbabilities("quick money");
+            cl.publishSnapshot();
+            assertEquals(cl.getClassificationProbabilities("quick money"), live);
+            cl.train("make quick money at the online casino", "bad");
+            cl.train("buy pharmaceuticals now", "ugly");
+            assertEquals(cl.getClassificationProbabilities("quick money"), live);
+            cl.publishSnapshot();
+            Map<Serializable, Double> updated = cl.getClassificationProbabilities("quick money");
+            assertEquals(updated.size(), 3);
+            cl.discardSnapshot();
+            assertEquals(cl.getClassificationProbabilities("quick money"), updated);
+        }
+
+        SimpleClassifierImpl cl = getTrainedClassifier();
+        cl.setSnapshotInterval(10, TimeUnit.MILLISECONDS);
+        try {
+            cl.train("buy pharmaceuticals now", "ugly");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cl.getClassificationProbabilities("pharmaceuticals").size() < 3
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(cl.getClassificationProbabilities("pharmaceuticals").size(), 3);
+        } finally {
+            cl.discardSnapshot();
+        }
+    }
+
+    @Test
+    public void testSnapshotFailures() throws Exception {
+        SimpleClassifierImpl approximate = new SimpleClassifierImpl(new PorterTokenizer(),
+                new CountMinClassifierDataFactory(0.001, 0.001));
+        try {
+            approximate.setSnapshotInterval(10, TimeUnit.MILLISECONDS);
+            assertTrue(false, "scheduled snapshots of a store that cannot list its features");
+        } catch (UnsupportedOperationException expected) {
+            assertEquals(approximate.getSnapshotInterval(TimeUnit.MILLISECONDS), 0);
+        }
+
+        // a failed publication is counted, and the schedule carries on past it
+        AtomicBoolean failing = new AtomicBoolean();
+        SimpleClassifierImpl cl = new SimpleClassifierImpl(new PorterTokenizer(), new ClassifierDataFactory() {
+            @Override
+            public FeatureStore buildFeatureStore() {
+                return new MapFeatureStore() {
+                    @Override
+                    public void forEachFeature(Serializable[] categories, FeatureStore.FeatureVisitor visitor) {
+                        if (failing.get()) {
+                            throw new IllegalStateException("store unavailable");
+                        }
+                        super.forEachFeature(categories, visitor);
+                    }
+                };
+            }
+
+            @Override
+            public void clear() {
+            }
+        });
+        train(cl);
+        cl.setSnapshotInterval(10, TimeUnit.MILLISECONDS);
+        try {
+            failing.set(true);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cl.getFailedSnapshotCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(cl.getFailedSnapshotCount() > 0);
+            failing.set(false);
+            cl.train("buy pharmaceuticals now", "ugly");
+            while (cl.getClassificationProbabilities("pharmaceuticals").size() < 3
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(cl.getClassificationProbabilities("pharmaceuticals").size(), 3);
+        } finally {
+            cl.discardSnapshot();
+        }
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Path directory = Files.createTempDirectory("model");
+        Path path = directory.resolve("model.bin");
+        try {
+            for (boolean hashed : new boolean[]{false, true}) {
+                SimpleClassifierImpl original = hashed
+                        ? new SimpleClassifierImpl(new HashingTokenizer(new PorterTokenizer(), 16, 2, true))
+                        : new SimpleClassifierImpl();
+                SimpleClassifierImpl loaded = hashed
+                        ? new SimpleClassifierImpl(new HashingTokenizer(new PorterTokenizer(), 16, 2, true))
+                        : new SimpleClassifierImpl();
+                train(original);
+                original.train("caf\u00e9 na\u00efve \ud83d\ude00 emoji", "good");
+                original.save(path);
+                original.save(path);
+                loaded.load(path);
+                for (String text : new String[]{"quick rabbit", "quick money", "caf\u00e9 \ud83d\ude00", "nothing"}) {
+                    assertEquals(loaded.getClassificationProbabilities(text), original.getClassificationProbabilities(text));
+                }
+
+                original.train("make quick money at the online casino", "bad");
+                loaded.train("make quick money at the online casino", "bad");
+                assertEquals(loaded.getClassificationProbabilities("quick money"),
+                        original.getClassificationProbabilities("quick money"));
+                loaded.publishSnapshot();
+                assertEquals(loaded.getClassificationProbabilities("quick money"),
+                        original.getClassificationProbabilities("quick money"));
+
+                // a model saved on top of a loaded one holds both
+                loaded.save(path);
+                SimpleClassifierImpl reloaded = hashed
+                        ? new SimpleClassifierImpl(new HashingTokenizer(new PorterTokenizer(), 16, 2, true))
+                        : new SimpleClassifierImpl();
+                reloaded.load(path);
+                assertEquals(reloaded.getClassificationProbabilities("quick money"),
+                        original.getClassificationProbabilities("quick money"));
+            }
+            Files.write(path, new byte[64]);
+            try {
+                new SimpleClassifierImpl().load(path);
+                assertTrue(false, "loaded a file that is not a model");
+            } catch (IOException expected) {
+                assertEquals(expected.getMessage(), "not a model file");
+            }
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testOffHeapStorage() throws IOException {
+        Path directory = Files.createTempDirectory("features");
+        try {
+            for (OffHeapClassifierDataFactory factory : new OffHeapClassifierDataFactory[]{
+                    new OffHeapClassifierDataFactory(), new OffHeapClassifierDataFactory(directory)}) {
+                SimpleClassifierImpl heap = new SimpleClassifierImpl();
+                SimpleClassifierImpl offHeap = new FisherClassifierImpl(new PorterTokenizer(), factory);
+                SimpleClassifierImpl expected = getTrainedFisher();
+                train(offHeap);
+                train(heap);
+                assertEquals(offHeap.getClassificationProbabilities("quick rabbit"),
+                        expected.getClassificationProbabilities("quick rabbit"));
+
+                // enough features and categories to grow and rebuild every segment
+                for (int i = 0; i < 20000; i++) {
+                    String text = "word" + i + " caf\u00e9" + (i % 7) + " \ud83d\ude00" + (i % 3);
+                    offHeap.train(text, "category" + (i % 9));
+                    heap.train(text, "category" + (i % 9));
+                }
+                for (String feature : new String[]{"word0", "word19999", "caf\u00e93", "\ud83d\ude001", "quick", "missing"}) {
+                    for (int i = 0; i < 9; i++) {
+                        assertEquals(offHeap.featureCount(feature, "category" + i), heap.featureCount(feature, "category" + i));
+                    }
+                    assertEquals(offHeap.featureCount(feature, "good"), heap.featureCount(feature, "good"));
+                }
+                OffHeapFeatureStore store = new OffHeapFeatureStore();
+                store.incrementFeature(42, "good", 3);
+                store.incrementFeature(~42, "bad");
+                assertEquals(store.featureCount(42, "good"), 3);
+                assertEquals(store.featureTotal(~42), 1);
+                assertEquals(store.size(), 2);
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testOffHeapEnumerationDuringWrites() throws Exception {
+        OffHeapFeatureStore store = new OffHeapFeatureStore();
+        Serializable[] categories = {"good"};
+        store.incrementFeature("feature", "good");
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writes = writer.submit(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    store.incrementFeature("feature" + i, "good");
+                }
+            });
+            // every record an enumeration reaches has to be complete
+            while (!writes.isDone()) {
+                store.forEachFeature(categories, (feature, counts, total) -> {
+                    assertTrue(((String) feature).startsWith("feature"), feature.toString());
+                    assertEquals(total, 1);
+                    assertEquals(counts[0], 1);
+                });
+                assertEquals(store.featureTotal("feature"), 1);
+            }
+            writes.get();
+            assertEquals(store.size(), 50001);
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    public void testHashedFeaturesInAnyStore() throws IOException {
+        Path model = Files.createTempFile("model", ".bin");
+        try {
+            HashingTokenizer tokenizer = new HashingTokenizer(new PorterTokenizer(), 12, 1, true);
+            SimpleClassifierImpl heap = new FisherClassifierImpl(tokenizer);
+            SimpleClassifierImpl offHeap = new FisherClassifierImpl(tokenizer, new OffHeapClassifierDataFactory());
+            train(heap);
+            train(offHeap);
+            Map<Serializable, Double> expected = heap.getClassificationProbabilities("quick rabbit");
+            assertEquals(offHeap.getClassificationProbabilities("quick rabbit"), expected);
+            offHeap.publishSnapshot();
+            assertEquals(offHeap.getClassificationProbabilities("quick rabbit"), expected);
+            offHeap.save(model);
+            SimpleClassifierImpl loaded = new FisherClassifierImpl(tokenizer, new OffHeapClassifierDataFactory());
+            loaded.load(model);
+            assertEquals(loaded.getClassificationProbabilities("quick rabbit"), expected);
+        } finally {
+            Files.delete(model);
+        }
+    }
+
+    @Test
+    public void testCustomDataFactory() {
+        ClassifierDataFactory factory = new ClassifierDataFactory() {
+            @Override
+            public void clear() {
+            }
+        };
+        SimpleClassifierImpl cl = new FisherClassifierImpl(new PorterTokenizer(), factory);
+        train(cl);
+        assertEquals(cl.getClassificationProbabilities("quick rabbit"),
+                getTrainedFisher().getClassificationProbabilities("quick rabbit"));
+    }
+
+    @Test
+    public void testInfinispanPersistence() throws IOException {
+        Path directory = Files.createTempDirectory("bayes-data");
+        String previous = System.setProperty("bayes.data.dir", directory.toString());
+        try {
+            Map<Serializable, Double> expected;
+            try (InfinispanClassifierDataFactory factory = new InfinispanClassifierDataFactory()) {
+                SimpleClassifierImpl cl = new FisherClassifierImpl(new PorterTokenizer(), factory);
+                train(cl);
+                expected = cl.getClassificationProbabilities("quick rabbit");
+                assertEquals(expected, getTrainedFisher().getClassificationProbabilities("quick rabbit"));
+                assertTrue(factory.getFeatureStatistics().getStores() > 0);
+            }
+            try (InfinispanClassifierDataFactory factory = new InfinispanClassifierDataFactory()) {
+                SimpleClassifierImpl cl = new FisherClassifierImpl(new PorterTokenizer(), factory);
+                assertEquals(cl.getClassificationProbabilities("quick rabbit"), expected);
+                factory.clear();
+                assertEquals(cl.getClassificationProbabilities("quick rabbit"), expected);
+                // features passivated by clear() are still enumerated
+                cl.publishSnapshot();
+                assertEquals(cl.getClassificationProbabilities("quick rabbit"), expected);
+            }
+        } finally {
+            if (previous == null) {
+                System.clearProperty("bayes.data.dir");
+            } else {
+                System.setProperty("bayes.data.dir", previous);
+            }
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testSaveDuringTraining() throws Exception {
+        Path directory = Files.createTempDirectory("model");
+        Path path = directory.resolve("model.bin");
+        SimpleClassifierImpl cl = new SimpleClassifierImpl(new SimpleTokenizer());
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(service.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        cl.train("alpha beta", "good");
+                    }
+                }));
+            }
+            // every save holds whole documents, however the trainers interleave with it
+            for (int i = 0; i < 20; i++) {
+                cl.save(path);
+                SimpleClassifierImpl loaded = new SimpleClassifierImpl(new SimpleTokenizer());
+                loaded.load(path);
+                int documents = loaded.categories.get("good").intValue();
+                assertEquals(loaded.featureCount("alpha", "good"), documents);
+                assertEquals(loaded.featureCount("beta", "good"), documents);
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(cl.featureCount("alpha", "good"), 80000);
+            assertEquals(cl.categories.get("good").intValue(), 80000);
+        } finally {
+            service.shutdown();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testInfinispanConcurrentTraining() throws Exception {
+        Path directory = Files.createTempDirectory("bayes-data");
+        String previous = System.setProperty("bayes.data.dir", directory.toString());
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        try (InfinispanClassifierDataFactory factory = new InfinispanClassifierDataFactory("bayes-cache-small.xml")) {
+            SimpleClassifierImpl cl = new SimpleClassifierImpl(new SimpleTokenizer(), factory);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(service.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        cl.train("alpha beta gamma" + ((thread * 500 + i) % 20), "good");
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(cl.featureCount("alpha", "good"), 4000);
+            assertEquals(cl.featureCount("beta", "good"), 4000);
+            int gammas = 0;
+            for (int i = 0; i < 20; i++) {
+                gammas += cl.featureCount("gamma" + i, "good");
+            }
+            assertEquals(gammas, 4000);
+            assertEquals(cl.categories.get("good").intValue(), 4000);
+            assertTrue(factory.getFeatureStatistics().getEvictions() > 0);
+        } finally {
+            service.shutdown();
+            if (previous == null) {
+                System.clearProperty("bayes.data.dir");
+            } else {
+                System.setProperty("bayes.data.dir", previous);
+            }
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testTrainingJournal() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        Path model = directory.resolve("model.bin");
+        Path journalDirectory = directory.resolve("journal");
+        try {
+            SimpleClassifierImpl original = new SimpleClassifierImpl();
+            try (TrainingJournal journal = new TrainingJournal(journalDirectory)) {
+                original.setJournal(journal);
+                train(original);
+                original.save(model);
+                original.train("make quick money at the online casino", "bad");
+                long last = journal.append("ugly", 0, new HashMap<>());
+                journal.awaitDurable(last);
+                List<TrainingDocument> documents = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    documents.add(new TrainingDocument("buy pharmaceuticals number " + i, "ugly"));
+                }
+                original.trainAll(documents);
+            }
+            // a torn record at the end of the journal is ignored
+            try (Stream<Path> segments = Files.list(journalDirectory)) {
+                Path last = segments.sorted(Comparator.reverseOrder()).findFirst().get();
+                Files.write(last, new byte[]{0, 0, 0, 99, 1, 2}, StandardOpenOption.APPEND);
+            }
+
+            // the model only holds the first training; the journal holds the rest
+            SimpleClassifierImpl recovered = new SimpleClassifierImpl();
+            try (TrainingJournal journal = new TrainingJournal(journalDirectory)) {
+                recovered.setJournal(journal);
+                recovered.load(model);
+                for (String text : new String[]{"quick money", "pharmaceuticals", "number 42"}) {
+                    assertEquals(recovered.getClassificationProbabilities(text), original.getClassificationProbabilities(text));
+                }
+                recovered.train("the quick rabbit", "good");
+                recovered.save(model);
+                recovered.train("the dog barks", "good");
+            }
+            try (Stream<Path> segments = Files.list(journalDirectory)) {
+                assertEquals(segments.count(), 1L);
+            }
+
+            // with no model, the whole journal is replayed, which is what came after the last save
+            SimpleClassifierImpl replayed = new SimpleClassifierImpl();
+            SimpleClassifierImpl reloaded = new SimpleClassifierImpl();
+            try (TrainingJournal journal = new TrainingJournal(journalDirectory)) {
+                reloaded.load(model);
+                reloaded.setJournal(journal);
+                replayed.setJournal(journal);
+            }
+            assertEquals(reloaded.getClassificationProbabilities("quick rabbit"), recovered.getClassificationProbabilities("quick rabbit"));
+            assertEquals(replayed.featureCount("rabbit", "good"), 0);
+            assertEquals(replayed.featureCount("dog", "good"), 1);
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testTrainingJournalAfterRestart() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        Path model = directory.resolve("model.bin");
+        Path journalDirectory = directory.resolve("journal");
+        try {
+            SimpleClassifierImpl original = new SimpleClassifierImpl();
+            try (TrainingJournal journal = new TrainingJournal(journalDirectory)) {
+                original.setJournal(journal);
+                train(original);
+                original.save(model);
+            }
+            // the save left only an empty segment; the numbering has to carry on past the checkpoint
+            SimpleClassifierImpl restarted = new SimpleClassifierImpl();
+            try (TrainingJournal journal = new TrainingJournal(journalDirectory)) {
+                restarted.load(model);
+                restarted.setJournal(journal);
+                restarted.train("the dog barks", "good");
+                journal.awaitDurable(journal.getDurableSequence() + 1);
+            }
+            SimpleClassifierImpl recovered = new SimpleClassifierImpl();
+            try (TrainingJournal journal = new TrainingJournal(journalDirectory)) {
+                recovered.setJournal(journal);
+                recovered.load(model);
+            }
+            assertEquals(recovered.featureCount("dog", "good"), 1);
+            assertEquals(recovered.getClassificationProbabilities("quick dog"),
+                    restarted.getClassificationProbabilities("quick dog"));
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testTrainingJournalGap() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        try {
+            Path first;
+            try (TrainingJournal journal = new TrainingJournal(directory)) {
+                for (int i = 0; i < 3; i++) {
+                    journal.append("good", 1, new HashMap<>());
+                }
+                journal.checkpoint();
+                long last = journal.append("bad", 1, new HashMap<>());
+                journal.awaitDurable(last);
+            }
+            try (Stream<Path> segments = Files.list(directory)) {
+                first = segments.sorted().findFirst().get();
+            }
+            // corrupting the second record leaves the next segment after a gap
+            byte[] bytes = Files.readAllBytes(first);
+            int second = ByteBuffer.wrap(bytes).getInt(0) + 8;
+            bytes[second + 20] ^= 1;
+            Files.write(first, bytes);
+            try {
+                new TrainingJournal(directory).close();
+                assertTrue(false, "opened a journal with events missing");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("does not follow sequence 1"), expected.getMessage());
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testCountMinFeatureStore() throws Exception {
+        CountMinFeatureStore store = new CountMinFeatureStore(0.001, 0.01);
+        assertEquals(store.getWidth(), 4096);
+        assertEquals(store.getDepth(), 5);
+        int total = 0;
+        for (int i = 0; i < 20000; i++) {
+            int count = 1 + i % 5;
+            store.incrementFeature("word" + i, i % 2 == 0 ? "even" : "odd", count);
+            total += count;
+        }
+        int outliers = 0;
+        for (int i = 0; i < 20000; i++) {
+            int count = 1 + i % 5;
+            int estimate = store.featureCount("word" + i, i % 2 == 0 ? "even" : "odd");
+            assertTrue(estimate >= count);
+            assertTrue(store.featureTotal("word" + i) >= count);
+            if (estimate - count > 0.001 * total) {
+                outliers++;
+            }
+        }
+        assertTrue(outliers <= 200, "too many counts past the error bound: " + outliers);
+
+        // "Aa" and "BB" share a hashCode, but not their counters
+        CountMinFeatureStore colliding = new CountMinFeatureStore(0.001, 0.01);
+        colliding.incrementFeature("Aa", "good", 100);
+        assertEquals(colliding.featureCount("BB", "good"), 0);
+
+        // concurrent updates of one feature, and of the features sharing its counters, add up
+        CountMinFeatureStore concurrent = new CountMinFeatureStore(0.01, 0.01);
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(service.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        concurrent.incrementFeature("hot", "good");
+                        concurrent.incrementFeature("w" + (thread * 2000 + i), "good");
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            service.shutdown();
+        }
+        assertTrue(concurrent.featureCount("hot", "good") >= 16000);
+        assertTrue(concurrent.featureTotal("hot") >= 16000);
+        for (int i = 0; i < 16000; i++) {
+            assertTrue(concurrent.featureCount("w" + i, "good") >= 1);
+        }
+
+        SimpleClassifierImpl approximate = new FisherClassifierImpl(new PorterTokenizer(),
+                new CountMinClassifierDataFactory(0.001, 0.001));
+        train(approximate);
+        assertEquals(approximate.getClassificationProbabilities("quick rabbit"),
+                getTrainedFisher().getClassificationProbabilities("quick rabbit"));
+    }
+
+    @Test
+    public void testFeatureBudget() {
+        PrimitiveFeatureStore store = new PrimitiveFeatureStore();
+        store.incrementFeature("stale", "good");
+        store.incrementFeature("common", "good", 5);
+        assertEquals(store.prune(2), 0);
+        // a prune pass ends the epoch, so the next features are fresher than "stale"
+        store.incrementFeature("fresh", "good");
+        store.incrementFeature("twice", "bad", 2);
+        assertEquals(store.prune(3), 1);
+        assertEquals(store.featureCount("stale", "good"), 0);
+        assertEquals(store.featureCount("fresh", "good"), 1);
+        assertEquals(store.prune(1), 2);
+        assertEquals(store.size(), 1);
+        assertEquals(store.featureCount("common", "good"), 5);
+
+        SimpleClassifierImpl classifier = new SimpleClassifierImpl(new SimpleTokenizer());
+        classifier.setExecutor(Runnable::run);
+        classifier.setFeatureBudget(100);
+        for (int i = 0; i < 1000; i++) {
+            classifier.train("common rare" + i, i % 2 == 0 ? "good" : "bad");
+        }
+        assertTrue(classifier.getPruneCount() > 0);
+        assertTrue(1001 - classifier.getEvictedFeatureCount() <= 100);
+        assertEquals(classifier.featureCount("common", "good"), 500);
+        assertEquals(classifier.featureCount("rare0", "good"), 0);
+        assertEquals(classifier.featureCount("rare999", "bad"), 1);
+
+        // a store that cannot prune refuses the budget up front
+        assertTrue(store.canPrune());
+        assertTrue(!new MapFeatureStore().canPrune());
+        SimpleClassifierImpl offHeap = new SimpleClassifierImpl(new SimpleTokenizer(), new OffHeapClassifierDataFactory());
+        try {
+            offHeap.setFeatureBudget(100);
+            assertTrue(false, "set a budget on a store that cannot prune");
+        } catch (UnsupportedOperationException expected) {
+            assertEquals(offHeap.getFeatureBudget(), 0);
+        }
+    }
+
     private SimpleClassifierImpl getTrainedClassifier() {
         SimpleClassifierImpl cl = new SimpleClassifierImpl();
 
@@ -102,4 +1008,126 @@ public class ClassifierTest {
         cl.setMinimum("bad", 0.4);
         assertEquals(cl.classify("quick money"), "bad");
     }
+
+    @Test
+    public void testInvChi() {
+        // the closed form for an even number of degrees of freedom
+        for (int df = 2; df <= 40; df += 2) {
+            for (double chi = 0.5; chi < 80; chi *= 1.7) {
+                double m = chi / 2.0;
+                double term = Math.exp(-m);
+                double sum = term;
+                for (int i = 1; i < df / 2; i++) {
+                    term *= m / i;
+                    sum += term;
+                }
+                assertEquals(ScoringEngine.invChi(chi, df), Math.min(sum, 1.0), 1e-12);
+            }
+        }
+        // where the closed form underflows, against sums taken in logarithms
+        assertEquals(ScoringEngine.invChi(5, 6), 0.5438131158833297, 1e-12);
+        assertEquals(ScoringEngine.invChi(10000, 10000), 0.49811936596795875, 1e-10);
+        assertEquals(ScoringEngine.invChi(21000, 20000) / 4.27587245503326e-07, 1.0, 1e-8);
+        assertEquals(ScoringEngine.invChi(24000, 20000) / 3.32720249233284e-79, 1.0, 1e-8);
+        assertEquals(ScoringEngine.invChi(18000, 20000), 1.0, 1e-12);
+        assertEquals(ScoringEngine.invChi(0, 20000), 1.0);
+        assertEquals(ScoringEngine.logGamma(2000.5), 13202.723836784036, 1e-8);
+    }
+
+    @Test
+    public void testFisherLongDocument() {
+        FisherClassifierImpl cl = getTrainedFisher();
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            document.append("quick rabbit ");
+        }
+        double good = cl.fisherProbability(document.toString(), "good");
+        double bad = cl.fisherProbability(document.toString(), "bad");
+        assertTrue(good > 0.0 && good <= 1.0, "good: " + good);
+        assertTrue(bad >= 0.0 && bad < good, "bad: " + bad);
+        assertEquals(cl.classify(document.toString()), "good");
+    }
+
+    @Test
+    public void testEarlyTermination() {
+        FisherClassifierImpl cl = new FisherClassifierImpl(new SimpleTokenizer());
+        Random random = new Random(42);
+        for (int d = 0; d < 200; d++) {
+            int category = d % 10;
+            StringBuilder document = new StringBuilder();
+            for (int w = 0; w < 8; w++) {
+                document.append(random.nextInt(3) == 0 ? "shared" + random.nextInt(20) : "word" + category + "x" + random.nextInt(5)).append(' ');
+            }
+            cl.train(document.toString(), "c" + category);
+        }
+        cl.publishSnapshot();
+        List<String> documents = new ArrayList<>();
+        for (int d = 0; d < 300; d++) {
+            StringBuilder document = new StringBuilder();
+            int length = 1 + random.nextInt(400);
+            for (int w = 0; w < length; w++) {
+                document.append(random.nextBoolean() ? "shared" + random.nextInt(25) : "word" + random.nextInt(10) + "x" + random.nextInt(6)).append(' ');
+            }
+            documents.add(document.toString());
+        }
+        for (double minimum : new double[]{0.0, 0.5, 0.9}) {
+            cl.setMinimum("c3", minimum);
+            cl.setMinimum("c7", minimum / 2);
+            cl.setEarlyTerminationBlockSize(0);
+            List<Serializable> expected = cl.classifyAll(documents);
+            for (int blockSize : new int[]{1, 7, 64}) {
+                cl.setEarlyTerminationBlockSize(blockSize);
+                assertEquals(cl.classifyAll(documents), expected, "block size " + blockSize + ", minimum " + minimum);
+            }
+        }
+
+        // the live model bounds its feature totals as tightly as a snapshot does
+        int published = cl.view(null).maxFeatureTotal();
+        cl.discardSnapshot();
+        assertEquals(cl.view(null).maxFeatureTotal(), published);
+        cl.setEarlyTerminationBlockSize(0);
+        List<Serializable> live = cl.classifyAll(documents);
+        cl.setEarlyTerminationBlockSize(7);
+        assertEquals(cl.classifyAll(documents), live);
+        cl.publishSnapshot();
+
+        // one category far ahead settles the document well before its end
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            document.append("word4x1 word4x2 ");
+        }
+        ModelView snapshot = cl.view(null);
+        int[] lookups = {0};
+        ModelView counting = new ModelView() {
+            @Override
+            public Serializable[] categories() {
+                return snapshot.categories();
+            }
+
+            @Override
+            public int categoryCount(int index) {
+                return snapshot.categoryCount(index);
+            }
+
+            @Override
+            public int totalCount() {
+                return snapshot.totalCount();
+            }
+
+            @Override
+            public int featureCounts(Serializable feature, int[] counts) {
+                lookups[0]++;
+                return snapshot.featureCounts(feature, counts);
+            }
+
+            @Override
+            public int maxFeatureTotal() {
+                return snapshot.maxFeatureTotal();
+            }
+        };
+        List<Serializable> features = cl.getFeatures(document.toString());
+        int best = ScoringEngine.fisherBest(counting, features::forEach, new double[snapshot.categories().length], 16);
+        assertEquals(snapshot.categories()[best], "c4");
+        assertTrue(lookups[0] < features.size(), lookups[0] + " lookups for " + features.size() + " features");
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.tokenizer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This maps terms to dense int identifiers, 0, 1, 2, and so on, in order of first
+ * appearance. It is for callers that keep their own per-term tables, such as feature
+ * vectors for a linear model or term counts in a custom index: with
+ * {@link Tokenizer#tokenizeToIds(CharSequence, TermDictionary)} they can index
+ * primitive arrays by term instead of hashing strings.
+ * <p>
+ * None of the classifiers in this project use it. The Bayes feature stores, snapshots
+ * and binary model files are keyed on the terms themselves (or on bucket numbers, for
+ * a hashing tokenizer), so a dictionary's identifiers are never written to a model and
+ * need not be kept alongside one.
+ * <p>
+ * Lookups take any CharSequence, so the reusable buffers handed out by a
+ * {@link TokenSink} can be resolved without building a String. Lookups never lock;
+ * adding a new term synchronizes on the dictionary.
+ */
+public final class TermDictionary {
+    private volatile Table table;
+    private volatile Terms terms;
+    private volatile int size;
+
+    public TermDictionary() {
+        this(1024);
+    }
+
+    public TermDictionary(int expectedTerms) {
+        int capacity = Math.max(16, expectedTerms);
+        table = new Table(Integer.highestOneBit(capacity - 1) << 2);
+        terms = new Terms(capacity);
+    }
+
+    /**
+     * @param term the term to find
+     * @return the term's identifier, or -1 if it has never been added
+     */
+    public int lookup(CharSequence term) {
+        return find(term, hash(term));
+    }
+
+    /**
+     * Returns the term's identifier, adding the term if it is new.
+     *
+     * @param term the term to find or add
+     * @return the term's identifier
+     */
+    public int intern(CharSequence term) {
+        int hash = hash(term);
+        int id = find(term, hash);
+        return id >= 0 ? id : add(term, hash);
+    }
+
+    /**
+     * @param id a term identifier
+     * @return the term for the identifier
+     * @throws IndexOutOfBoundsException if no term has the identifier
+     */
+    public String term(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("no term with id " + id);
+        }
+        return terms.strings[id];
+    }
+
+    /**
+     * @return the number of terms, which is also the next identifier to be handed out
+     */
+    public int size() {
+        return size;
+    }
+
+    private synchronized int add(CharSequence term, int hash) {
+        int id = find(term, hash);
+        if (id >= 0) {
+            return id;
+        }
+        id = size;
+        Terms current = terms;
+        if (id == current.strings.length) {
+            current = current.grow();
+        }
+        current.strings[id] = term.toString();
+        current.hashes[id] = hash;
+        terms = current;
+        size = id + 1;
+
+        Table target = table;
+        if (size * 2 > target.slots.length()) {
+            target = new Table(target.slots.length() * 2);
+            for (int existing = 0; existing < id; existing++) {
+                target.insert(current.hashes[existing], existing);
+            }
+            target.insert(hash, id);
+            table = target;
+        } else {
+            target.insert(hash, id);
+        }
+        return id;
+    }
+
+    private int find(CharSequence term, int hash) {
+        AtomicIntegerArray slots = table.slots;
+        int mask = slots.length() - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int slot = slots.get(i);
+            if (slot == 0) {
+                return -1;
+            }
+            int id = slot - 1;
+            // terms are published before their slot, so this read always covers id
+            Terms current = terms;
+            if (current.hashes[id] == hash && equal(current.strings[id], term)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean equal(String s, CharSequence term) {
+        if (s == null || s.length() != term.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != term.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence term) {
+        int h = 0;
+        for (int i = 0; i < term.length(); i++) {
+            h = 31 * h + term.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /* open-addressed slots holding id + 1, so that 0 marks an empty slot */
+    private static final class Table {
+        final AtomicIntegerArray slots;
+
+        Table(int capacity) {
+            slots = new AtomicIntegerArray(capacity);
+        }
+
+        void insert(int hash, int id) {
+            int mask = slots.length() - 1;
+            int i = hash & mask;
+            while (slots.get(i) != 0) {
+                i = (i + 1) & mask;
+            }
+            slots.set(i, id + 1);
+        }
+    }
+
+    private static final class Terms {
+        final String[] strings;
+        final int[] hashes;
+
+        Terms(int capacity) {
+            strings = new String[capacity];
+            hashes = new int[capacity];
+        }
+
+        Terms(String[] strings, int[] hashes) {
+            this.strings = strings;
+            this.hashes = hashes;
+        }
+
+        Terms grow() {
+            int capacity = strings.length * 2;
+            return new Terms(Arrays.copyOf(strings, capacity), Arrays.copyOf(hashes, capacity));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.tokenizer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This is a growable, reusable character buffer that tokenizers hand to a {@link TokenSink}.
+ * It is not thread-safe, and its contents change with every token.
+ */
+public final class TokenBuffer implements CharSequence {
+    /**
+     * Orders character sequences by content, so sets of Strings can be probed with a buffer.
+     */
+    public static final Comparator<CharSequence> ORDER = TokenBuffer::compare;
+
+    private char[] chars;
+    private int length;
+
+    public TokenBuffer() {
+        this(32);
+    }
+
+    public TokenBuffer(int capacity) {
+        chars = new char[Math.max(capacity, 1)];
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    public void append(char c) {
+        if (length == chars.length) {
+            chars = Arrays.copyOf(chars, length * 2);
+        }
+        chars[length++] = c;
+    }
+
+    public void append(CharSequence source, int start, int end) {
+        int required = length + end - start;
+        if (required > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(required, chars.length * 2));
+        }
+        for (int i = start; i < end; i++) {
+            chars[length++] = source.charAt(i);
+        }
+    }
+
+    /**
+     * The backing array; only the first {@link #length()} characters are meaningful.
+     *
+     * @return the backing array
+     */
+    public char[] buffer() {
+        return chars;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Compares two character sequences lexicographically, by content.
+     *
+     * @param a the first sequence
+     * @param b the second sequence
+     * @return a negative number, zero, or a positive number as a sorts before, with, or after b
+     */
+    public static int compare(CharSequence a, CharSequence b) {
+        int limit = Math.min(a.length(), b.length());
+        for (int i = 0; i < limit; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return a.length() - b.length();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This runs the tokens of a source tokenizer through a series of {@link TokenStage}s, so
+ * that callers pay only for the stages they ask for:
+ * <pre>
+ * Tokenizer tokenizer = new TokenPipeline(new SimpleTokenizer(),
+ *         new LowercaseStage(), new StopWordStage("and", "the", "but"),
+ *         new LengthStage(3, 64), new StemStage(), new DedupeStage());
+ * </pre>
+ * The stages' working state is built once per call, so {@link #tokenizeAll(Iterable, BatchSink)}
+ * shares it across a whole batch of documents. A pipeline is as thread-safe as its source
+ * tokenizer.
+ */
+public class TokenPipeline implements Tokenizer {
+    private final Tokenizer source;
+    private final TokenStage[] stages;
+
+    public TokenPipeline(Tokenizer source, TokenStage... stages) {
+        this.source = source;
+        this.stages = stages.clone();
+    }
+
+    public Tokenizer getSource() {
+        return source;
+    }
+
+    public List<TokenStage> getStages() {
+        return Arrays.asList(stages.clone());
+    }
+
+    @Override
+    public List<Serializable> tokenize(Serializable source) {
+        String src = source.toString();
+        List<Serializable> tokens = new ArrayList<>(src.length() / 5);
+        tokenize(src, token -> tokens.add(token.toString()));
+        return tokens;
+    }
+
+    @Override
+    public void tokenize(CharSequence source, TokenSink sink) {
+        TokenStage.Sink head = open(sink);
+        this.source.tokenize(source, head);
+        head.endDocument();
+    }
+
+    @Override
+    public void tokenizeSequentially(CharSequence source, TokenSink sink) {
+        TokenStage.Sink head = open(sink);
+        this.source.tokenizeSequentially(source, head);
+        head.endDocument();
+    }
+
+    @Override
+    public void tokenize(Reader source, TokenSink sink) throws IOException {
+        TokenStage.Sink head = open(sink);
+        this.source.tokenize(source, head);
+        head.endDocument();
+    }
+
+    /**
+     * Streams the tokens of every document into the sink, in order, setting the stages up
+     * once for the whole batch.
+     *
+     * @param documents the texts to tokenize
+     * @param sink      the receiver of each token, with the index of its document
+     */
+    public void tokenizeAll(Iterable<? extends CharSequence> documents, BatchSink sink) {
+        final int[] index = {0};
+        TokenStage.Sink head = open(token -> sink.accept(index[0], token));
+        for (CharSequence document : documents) {
+            source.tokenize(document, head);
+            head.endDocument();
+            index[0]++;
+        }
+    }
+
+    /**
+     * @param documents the texts to tokenize
+     * @return the tokens of each document, in document order
+     */
+    public List<List<Serializable>> tokenizeAll(Iterable<? extends CharSequence> documents) {
+        List<List<Serializable>> tokens = new ArrayList<>();
+        TokenStage.Sink head = open(token -> tokens.get(tokens.size() - 1).add(token.toString()));
+        for (CharSequence document : documents) {
+            tokens.add(new ArrayList<>());
+            source.tokenize(document, head);
+            head.endDocument();
+        }
+        return tokens;
+    }
+
+    private TokenStage.Sink open(TokenSink sink) {
+        TokenStage.Sink head = new TokenStage.Sink() {
+            @Override
+            public void accept(CharSequence token) {
+                sink.accept(token);
+            }
+
+            @Override
+            public void endDocument() {
+            }
+        };
+        for (int i = stages.length - 1; i >= 0; i--) {
+            head = stages[i].open(head);
+        }
+        return head;
+    }
+
+    /**
+     * This receives the tokens of a batch of documents, along with the position of each
+     * token's document in the batch. As with {@link TokenSink}, the token is only valid
+     * for the duration of the call.
+     */
+    @FunctionalInterface
+    public interface BatchSink {
+        void accept(int document, CharSequence token);
+    }
+}
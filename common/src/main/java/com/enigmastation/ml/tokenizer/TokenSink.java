@@ -0,0 +1,29 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.tokenizer;
+
+/**
+ * This receives tokens from the streaming forms of {@link Tokenizer#tokenize(CharSequence, TokenSink)}.
+ * <p>
+ * The token handed to the sink is a view over a buffer the tokenizer reuses; it is only
+ * valid for the duration of the call. A sink that needs to keep a token has to copy it,
+ * with toString(), for example.
+ */
+@FunctionalInterface
+public interface TokenSink {
+    void accept(CharSequence token);
+}
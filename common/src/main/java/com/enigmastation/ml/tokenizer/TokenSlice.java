@@ -0,0 +1,91 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.tokenizer;
+
+/**
+ * This is a reusable offset/length view over the document being tokenized, so that a
+ * tokenizer that does not rewrite its tokens can hand them to a {@link TokenSink}
+ * without copying any characters. It is not thread-safe, and it is repointed for every
+ * token.
+ */
+public final class TokenSlice implements CharSequence {
+    private CharSequence source = "";
+    private int offset;
+    private int length;
+
+    /**
+     * Points this slice at a range of a document.
+     *
+     * @param source the document
+     * @param start  the index of the first character of the token
+     * @param end    the index after the last character of the token
+     * @return this slice
+     */
+    public TokenSlice set(CharSequence source, int start, int end) {
+        this.source = source;
+        this.offset = start;
+        this.length = end - start;
+        return this;
+    }
+
+    /**
+     * @return the document this slice views
+     */
+    public CharSequence source() {
+        return source;
+    }
+
+    /**
+     * @return the index of the slice's first character in the document
+     */
+    public int offset() {
+        return offset;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return source.charAt(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + ", " + end);
+        }
+        return source.subSequence(offset + start, offset + end);
+    }
+
+    @Override
+    public String toString() {
+        if (source instanceof String) {
+            return ((String) source).substring(offset, offset + length);
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(source.charAt(offset + i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer;
+
+/**
+ * This is one step of a {@link TokenPipeline}: it rewrites, drops or adds tokens on their
+ * way from the source tokenizer to the caller.
+ * <p>
+ * A stage is only a description; {@link #open(Sink)} builds the working state - buffers,
+ * sets, stemmers - for one run of the pipeline, which may cover a whole batch of
+ * documents. Stages themselves must be safe to share between threads.
+ */
+public interface TokenStage {
+    /**
+     * Builds this stage's state in front of the next one.
+     *
+     * @param downstream the next stage, which receives this stage's output
+     * @return the sink that receives this stage's input
+     */
+    Sink open(Sink downstream);
+
+    /**
+     * This is a token sink that also learns where documents end, so stages that look at
+     * more than one token can reset. Implementations pass the end of a document on
+     * downstream once they have flushed.
+     */
+    interface Sink extends TokenSink {
+        void endDocument();
+    }
+}
@@ -16,9 +16,133 @@
 
 package com.enigmastation.ml.tokenizer;
 
+import com.enigmastation.ml.util.ByteBufferReader;
+import com.enigmastation.ml.util.ByteCharSequence;
+
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 public interface Tokenizer {
     List<Serializable> tokenize(Serializable source);
+
+    /**
+     * Streams the tokens of the source into the sink, in order, without building a list.
+     * <p>
+     * The default implementation delegates to {@link #tokenize(Serializable)}; tokenizers
+     * that can avoid the intermediate list should override it.
+     *
+     * @param source the text to tokenize
+     * @param sink   the receiver of each token
+     */
+    default void tokenize(CharSequence source, TokenSink sink) {
+        for (Serializable token : tokenize(source.toString())) {
+            sink.accept(token.toString());
+        }
+    }
+
+    /**
+     * Streams the tokens of the source into the sink on the calling thread, handing each
+     * one over as soon as it is found, so that a sink that stops early - by throwing, as a
+     * token limit does - saves the rest of the work.
+     * <p>
+     * The default implementation delegates to {@link #tokenize(CharSequence, TokenSink)};
+     * tokenizers that split a document across threads, and tokenizers that wrap another,
+     * should override it.
+     *
+     * @param source the text to tokenize
+     * @param sink   the receiver of each token
+     */
+    default void tokenizeSequentially(CharSequence source, TokenSink sink) {
+        tokenize(source, sink);
+    }
+
+    /**
+     * Streams the tokens read from the reader into the sink, in order. The reader is
+     * consumed but not closed.
+     *
+     * @param source the text to tokenize
+     * @param sink   the receiver of each token
+     * @throws IOException if the reader fails
+     */
+    default void tokenize(Reader source, TokenSink sink) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        tokenize(sb, sink);
+    }
+
+    /**
+     * Streams the tokens of the buffer's remaining characters into the sink, reading them
+     * in place; the buffer's position is not moved.
+     *
+     * @param source the text to tokenize
+     * @param sink   the receiver of each token
+     */
+    default void tokenize(CharBuffer source, TokenSink sink) {
+        tokenize((CharSequence) source, sink);
+    }
+
+    /**
+     * Streams the tokens of the buffer's remaining bytes into the sink, decoding them in
+     * the given charset; the buffer's position is not moved. This is meant for mapped
+     * files: ISO-8859-1 and US-ASCII bytes are read in place, and other charsets are
+     * decoded a block at a time, so the document is never held in decoded form.
+     *
+     * @param source  the encoded text to tokenize, a MappedByteBuffer, for example
+     * @param charset the encoding of the text
+     * @param sink    the receiver of each token
+     */
+    default void tokenize(ByteBuffer source, Charset charset, TokenSink sink) {
+        if (ByteCharSequence.supports(charset)) {
+            tokenize(new ByteCharSequence(source, charset), sink);
+        } else {
+            try {
+                tokenize(new ByteBufferReader(source, charset), sink);
+            } catch (IOException e) {
+                throw new RuntimeException("Should not happen: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Streams the dictionary identifiers of the source's tokens into the sink, adding
+     * unseen tokens to the dictionary.
+     *
+     * @param source     the text to tokenize
+     * @param dictionary the dictionary that assigns identifiers
+     * @param sink       the receiver of each identifier
+     */
+    default void tokenize(CharSequence source, TermDictionary dictionary, IntConsumer sink) {
+        tokenize(source, token -> sink.accept(dictionary.intern(token)));
+    }
+
+    /**
+     * Returns the dictionary identifiers of the source's tokens, in order, adding unseen
+     * tokens to the dictionary.
+     *
+     * @param source     the text to tokenize
+     * @param dictionary the dictionary that assigns identifiers
+     * @return the identifiers of the tokens
+     */
+    default int[] tokenizeToIds(CharSequence source, TermDictionary dictionary) {
+        final int[][] ids = {new int[16]};
+        final int[] count = {0};
+        tokenize(source, dictionary, id -> {
+            if (count[0] == ids[0].length) {
+                ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+            }
+            ids[0][count[0]++] = id;
+        });
+        return Arrays.copyOf(ids[0], count[0]);
+    }
 }
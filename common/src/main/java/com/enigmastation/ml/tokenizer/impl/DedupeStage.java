@@ -0,0 +1,51 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenStage;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This drops tokens already seen in the current document, leaving the set of distinct
+ * tokens in order of first appearance.
+ */
+public class DedupeStage implements TokenStage {
+    @Override
+    public Sink open(Sink downstream) {
+        Set<CharSequence> seen = new TreeSet<>(TokenBuffer.ORDER);
+        return new Sink() {
+            @Override
+            public void accept(CharSequence token) {
+                // only a new token is worth copying
+                if (!seen.contains(token)) {
+                    seen.add(token.toString());
+                    downstream.accept(token);
+                }
+            }
+
+            @Override
+            public void endDocument() {
+                seen.clear();
+                downstream.endDocument();
+            }
+        };
+    }
+}
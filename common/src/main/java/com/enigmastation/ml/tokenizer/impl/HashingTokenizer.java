@@ -0,0 +1,202 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenSink;
+import com.enigmastation.ml.tokenizer.Tokenizer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * This applies the hashing trick to the tokens of another tokenizer: every token, and
+ * optionally every run of up to n consecutive tokens, is hashed into one of
+ * 2<sup>bits</sup> buckets, so the feature space has a fixed size no matter how much
+ * junk passes through it.
+ * <p>
+ * Features are Integers. When signed, a second hash bit chooses a sign for each feature,
+ * and negative features are encoded as the bitwise complement of their bucket, so that
+ * colliding features cancel out on average in a linear model. Use {@link #bucket(int)}
+ * and {@link #sign(int)} to decode them.
+ * <p>
+ * The streaming form of {@link #tokenize(CharSequence, TokenSink)} hands over the decimal
+ * text of each feature; {@link #hash(CharSequence, IntConsumer)} streams them without
+ * boxing.
+ */
+public class HashingTokenizer implements Tokenizer {
+    private static final int SEED = 0x9747b28c;
+
+    private final Tokenizer source;
+    private final int bits;
+    private final int ngrams;
+    private final boolean signed;
+
+    public HashingTokenizer() {
+        this(new PorterTokenizer(), 20);
+    }
+
+    public HashingTokenizer(Tokenizer source, int bits) {
+        this(source, bits, 1, false);
+    }
+
+    /**
+     * @param source the tokenizer whose tokens are hashed
+     * @param bits   the size of the feature space, as a power of two, from 1 to 30
+     * @param ngrams the longest run of consecutive tokens hashed as one feature; 1 hashes single tokens only
+     * @param signed whether features carry a hashed sign
+     */
+    public HashingTokenizer(Tokenizer source, int bits, int ngrams, boolean signed) {
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30: " + bits);
+        }
+        if (ngrams < 1) {
+            throw new IllegalArgumentException("ngrams must be at least 1: " + ngrams);
+        }
+        this.source = source;
+        this.bits = bits;
+        this.ngrams = ngrams;
+        this.signed = signed;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return the number of buckets, 2<sup>bits</sup>
+     */
+    public int getDimension() {
+        return 1 << bits;
+    }
+
+    public int getNgrams() {
+        return ngrams;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    /**
+     * @param feature a feature produced by this tokenizer
+     * @return the bucket the feature falls into
+     */
+    public static int bucket(int feature) {
+        return feature >= 0 ? feature : ~feature;
+    }
+
+    /**
+     * @param feature a feature produced by this tokenizer
+     * @return the sign of the feature, 1 or -1
+     */
+    public static int sign(int feature) {
+        return feature >= 0 ? 1 : -1;
+    }
+
+    /**
+     * Streams the hashed features of the source into the sink, in token order; each
+     * token's n-grams follow the token itself.
+     *
+     * @param text the text to tokenize
+     * @param sink the receiver of each feature
+     */
+    public void hash(CharSequence text, IntConsumer sink) {
+        source.tokenize(text, hasher(sink));
+    }
+
+    /* hashes each token and its n-grams with the tokens before it, for one document */
+    private TokenSink hasher(IntConsumer sink) {
+        final int[] recent = new int[ngrams - 1];
+        final int[] seen = {0};
+        return token -> {
+            int h = murmur(token);
+            sink.accept(feature(h));
+            int gram = h;
+            int available = Math.min(seen[0], recent.length);
+            for (int i = 0; i < available; i++) {
+                gram = mix(recent[i] * 0x9e3779b1 ^ gram);
+                sink.accept(feature(gram));
+            }
+            if (recent.length > 0) {
+                System.arraycopy(recent, 0, recent, 1, recent.length - 1);
+                recent[0] = h;
+            }
+            seen[0]++;
+        };
+    }
+
+    @Override
+    public List<Serializable> tokenize(Serializable source) {
+        String src = source.toString();
+        List<Serializable> features = new ArrayList<>(src.length() / 5);
+        hash(src, features::add);
+        return features;
+    }
+
+    @Override
+    public void tokenize(CharSequence source, TokenSink sink) {
+        hash(source, feature -> sink.accept(Integer.toString(feature)));
+    }
+
+    @Override
+    public void tokenizeSequentially(CharSequence source, TokenSink sink) {
+        this.source.tokenizeSequentially(source, hasher(feature -> sink.accept(Integer.toString(feature))));
+    }
+
+    private int feature(int hash) {
+        int bucket = hash >>> (32 - bits);
+        return signed && (hash & 1) != 0 ? ~bucket : bucket;
+    }
+
+    /* murmur3's 32-bit hash, over the characters of the token */
+    private static int murmur(CharSequence token) {
+        int h = SEED;
+        int length = token.length();
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            h = round(h, token.charAt(i) | (token.charAt(i + 1) << 16));
+        }
+        if (i < length) {
+            int k = token.charAt(i);
+            k *= 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15);
+            k *= 0x1b873593;
+            h ^= k;
+        }
+        return mix(h ^ (length * 2));
+    }
+
+    private static int round(int h, int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        k *= 0x1b873593;
+        h ^= k;
+        h = Integer.rotateLeft(h, 13);
+        return h * 5 + 0xe6546b64;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
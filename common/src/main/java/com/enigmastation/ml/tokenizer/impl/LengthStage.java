@@ -0,0 +1,63 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenStage;
+
+/**
+ * This drops tokens shorter or longer than its bounds, which are inclusive.
+ */
+public class LengthStage implements TokenStage {
+    private final int minLength;
+    private final int maxLength;
+
+    public LengthStage(int minLength) {
+        this(minLength, Integer.MAX_VALUE);
+    }
+
+    public LengthStage(int minLength, int maxLength) {
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    public int getMinLength() {
+        return minLength;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    @Override
+    public Sink open(Sink downstream) {
+        return new Sink() {
+            @Override
+            public void accept(CharSequence token) {
+                int length = token.length();
+                if (length >= minLength && length <= maxLength) {
+                    downstream.accept(token);
+                }
+            }
+
+            @Override
+            public void endDocument() {
+                downstream.endDocument();
+            }
+        };
+    }
+}
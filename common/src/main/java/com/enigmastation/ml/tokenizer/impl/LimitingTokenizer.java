@@ -0,0 +1,308 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenSink;
+import com.enigmastation.ml.tokenizer.TokenSlice;
+import com.enigmastation.ml.tokenizer.Tokenizer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This puts a hard bound on the work another tokenizer does per document: only the first
+ * maxCharacters characters are read (cut back to the last whitespace, so no token is
+ * split, whether the document is a CharSequence or a Reader), and tokenizing stops
+ * outright after maxTokens tokens. Either limit may be zero, which means unlimited. With
+ * a token limit, the source is driven through
+ * {@link Tokenizer#tokenizeSequentially(CharSequence, TokenSink)}, so that stopping also
+ * stops the work; a {@link PorterTokenizer}'s parallel path would tokenize the whole
+ * document before the first token reached the limit.
+ * <p>
+ * A sample rate below 1.0 additionally drops a fixed fraction of distinct tokens. The
+ * choice depends only on the token's text, so a token is either always kept or always
+ * dropped, and training and classification see the same vocabulary.
+ * <p>
+ * {@link #tokenizeWithLimits(CharSequence, TokenSink)} reports whether a document was
+ * truncated; {@link #getTruncatedCount()} counts truncated documents overall.
+ */
+public class LimitingTokenizer implements Tokenizer {
+    private static final StopTokenizing STOP = new StopTokenizing();
+
+    private final Tokenizer source;
+    private volatile int maxCharacters;
+    private volatile int maxTokens;
+    private volatile double sampleRate = 1.0;
+    private final LongAdder truncated = new LongAdder();
+
+    public LimitingTokenizer(Tokenizer source, int maxCharacters, int maxTokens) {
+        this(source, maxCharacters, maxTokens, 1.0);
+    }
+
+    /**
+     * @param source        the tokenizer that does the work
+     * @param maxCharacters the most characters read per document, or zero
+     * @param maxTokens     the most tokens produced per document, or zero
+     * @param sampleRate    the fraction of distinct tokens kept, from 0.0 to 1.0
+     */
+    public LimitingTokenizer(Tokenizer source, int maxCharacters, int maxTokens, double sampleRate) {
+        this.source = source;
+        setMaxCharacters(maxCharacters);
+        setMaxTokens(maxTokens);
+        setSampleRate(sampleRate);
+    }
+
+    public Tokenizer getSource() {
+        return source;
+    }
+
+    public int getMaxCharacters() {
+        return maxCharacters;
+    }
+
+    public void setMaxCharacters(int maxCharacters) {
+        if (maxCharacters < 0) {
+            throw new IllegalArgumentException("maxCharacters must not be negative: " + maxCharacters);
+        }
+        this.maxCharacters = maxCharacters;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public void setMaxTokens(int maxTokens) {
+        if (maxTokens < 0) {
+            throw new IllegalArgumentException("maxTokens must not be negative: " + maxTokens);
+        }
+        this.maxTokens = maxTokens;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0.0 && sampleRate <= 1.0)) {
+            throw new IllegalArgumentException("sampleRate must be between 0.0 and 1.0: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * @return the number of documents cut short by either limit so far
+     */
+    public long getTruncatedCount() {
+        return truncated.sum();
+    }
+
+    /**
+     * Streams the tokens of the source into the sink, within the limits.
+     *
+     * @param source the text to tokenize
+     * @param sink   the receiver of each token
+     * @return what was read and produced, and whether the document was truncated
+     */
+    public Result tokenizeWithLimits(CharSequence source, TokenSink sink) {
+        return tokenizeWithLimits(source, sink, false);
+    }
+
+    /* with a token limit, the source always runs on this thread, so a stop saves its work */
+    private Result tokenizeWithLimits(CharSequence source, TokenSink sink, boolean sequential) {
+        int limit = maxCharacters;
+        CharSequence text = source;
+        boolean cut = false;
+        if (limit > 0 && source.length() > limit) {
+            int end = limit;
+            while (end > 0 && !Character.isWhitespace(source.charAt(end))) {
+                end--;
+            }
+            text = new TokenSlice().set(source, 0, end == 0 ? limit : end);
+            cut = true;
+        }
+        int tokens = maxTokens;
+        Limiter limiter = new Limiter(sink, tokens, sampleRate);
+        try {
+            if (sequential || tokens > 0) {
+                this.source.tokenizeSequentially(text, limiter);
+            } else {
+                this.source.tokenize(text, limiter);
+            }
+        } catch (StopTokenizing e) {
+            cut = limiter.stop(e);
+        }
+        if (cut) {
+            truncated.increment();
+        }
+        return new Result(text.length(), limiter.tokens, cut);
+    }
+
+    @Override
+    public List<Serializable> tokenize(Serializable source) {
+        List<Serializable> tokens = new ArrayList<>();
+        tokenizeWithLimits(source.toString(), token -> tokens.add(token.toString()));
+        return tokens;
+    }
+
+    @Override
+    public void tokenize(CharSequence source, TokenSink sink) {
+        tokenizeWithLimits(source, sink);
+    }
+
+    @Override
+    public void tokenizeSequentially(CharSequence source, TokenSink sink) {
+        tokenizeWithLimits(source, sink, true);
+    }
+
+    /**
+     * With a character limit, this reads at most one character past the limit, to tell
+     * whether the cut splits a token, and tokenizes what it read as a CharSequence; without
+     * one, the source tokenizer reads the Reader itself.
+     */
+    @Override
+    public void tokenize(Reader source, TokenSink sink) throws IOException {
+        int limit = maxCharacters;
+        if (limit == 0) {
+            Limiter limiter = new Limiter(sink, maxTokens, sampleRate);
+            try {
+                this.source.tokenize(source, limiter);
+            } catch (StopTokenizing e) {
+                limiter.stop(e);
+                truncated.increment();
+            }
+            return;
+        }
+        int wanted = limit == Integer.MAX_VALUE ? limit : limit + 1;
+        char[] buffer = new char[Math.min(wanted, 8192)];
+        int length = 0;
+        int count;
+        while (length < wanted && (count = source.read(buffer, length, buffer.length - length)) != -1) {
+            length += count;
+            if (length == buffer.length && length < wanted) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min((long) length * 2, wanted));
+            }
+        }
+        tokenizeWithLimits(CharBuffer.wrap(buffer, 0, length), sink);
+    }
+
+    /**
+     * This describes one document's pass through a {@link LimitingTokenizer}.
+     */
+    public static final class Result {
+        private final int characters;
+        private final int tokens;
+        private final boolean truncated;
+
+        Result(int characters, int tokens, boolean truncated) {
+            this.characters = characters;
+            this.tokens = tokens;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @return the number of characters handed to the source tokenizer
+         */
+        public int getCharacters() {
+            return characters;
+        }
+
+        /**
+         * @return the number of tokens passed on to the sink
+         */
+        public int getTokens() {
+            return tokens;
+        }
+
+        /**
+         * @return whether part of the document was never tokenized
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{characters=" + characters + ", tokens=" + tokens + ", truncated=" + truncated + "}";
+        }
+    }
+
+    private static final class Limiter implements TokenSink {
+        private final TokenSink sink;
+        private final int maxTokens;
+        private final int threshold;
+        private boolean stopped;
+        int tokens;
+
+        Limiter(TokenSink sink, int maxTokens, double sampleRate) {
+            this.sink = sink;
+            this.maxTokens = maxTokens;
+            this.threshold = (int) (sampleRate * (1 << 24));
+        }
+
+        @Override
+        public void accept(CharSequence token) {
+            if (threshold < (1 << 24) && sample(token) >= threshold) {
+                return;
+            }
+            if (maxTokens > 0 && tokens == maxTokens) {
+                stopped = true;
+                throw STOP;
+            }
+            tokens++;
+            sink.accept(token);
+        }
+
+        /* rethrows a stop that belongs to some other limiter further down the sink chain */
+        boolean stop(StopTokenizing e) {
+            if (!stopped) {
+                throw e;
+            }
+            return true;
+        }
+
+        /* a well-mixed 24-bit hash of the token's text */
+        private static int sample(CharSequence token) {
+            int h = 0;
+            for (int i = 0; i < token.length(); i++) {
+                h = 31 * h + token.charAt(i);
+            }
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h >>> 8;
+        }
+    }
+
+    /**
+     * This unwinds the source tokenizer once the token limit is reached; it is thrown a
+     * lot, so it carries no stack trace.
+     */
+    private static final class StopTokenizing extends RuntimeException {
+        StopTokenizing() {
+            super("token limit reached", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenStage;
+
+/**
+ * This lowercases tokens; tokens that are already lowercase pass through untouched.
+ */
+public class LowercaseStage implements TokenStage {
+    @Override
+    public Sink open(Sink downstream) {
+        TokenBuffer lowered = new TokenBuffer();
+        return new Sink() {
+            @Override
+            public void accept(CharSequence token) {
+                int length = token.length();
+                int i = 0;
+                while (i < length && Character.toLowerCase(token.charAt(i)) == token.charAt(i)) {
+                    i++;
+                }
+                if (i == length) {
+                    downstream.accept(token);
+                    return;
+                }
+                lowered.clear();
+                lowered.append(token, 0, i);
+                for (; i < length; i++) {
+                    lowered.append(Character.toLowerCase(token.charAt(i)));
+                }
+                downstream.accept(lowered);
+            }
+
+            @Override
+            public void endDocument() {
+                downstream.endDocument();
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenStage;
+
+/**
+ * This follows every token with the word n-grams that end in it: with n of 3, "c" in
+ * "a b c" is followed by "b c" and "a b c". N-grams never span documents.
+ */
+public class NGramStage implements TokenStage {
+    private final int n;
+    private final char separator;
+
+    public NGramStage(int n) {
+        this(n, ' ');
+    }
+
+    public NGramStage(int n, char separator) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be at least 1: " + n);
+        }
+        this.n = n;
+        this.separator = separator;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    @Override
+    public Sink open(Sink downstream) {
+        // the previous n-1 tokens, most recent first
+        TokenBuffer[] recent = new TokenBuffer[n - 1];
+        for (int i = 0; i < recent.length; i++) {
+            recent[i] = new TokenBuffer();
+        }
+        TokenBuffer gram = new TokenBuffer();
+        return new Sink() {
+            int seen;
+
+            @Override
+            public void accept(CharSequence token) {
+                downstream.accept(token);
+                int available = Math.min(seen, recent.length);
+                for (int size = 1; size <= available; size++) {
+                    gram.clear();
+                    for (int i = size - 1; i >= 0; i--) {
+                        gram.append(recent[i], 0, recent[i].length());
+                        gram.append(separator);
+                    }
+                    gram.append(token, 0, token.length());
+                    downstream.accept(gram);
+                }
+                if (recent.length > 0) {
+                    TokenBuffer oldest = recent[recent.length - 1];
+                    System.arraycopy(recent, 0, recent, 1, recent.length - 1);
+                    oldest.clear();
+                    oldest.append(token, 0, token.length());
+                    recent[0] = oldest;
+                }
+                seen++;
+            }
+
+            @Override
+            public void endDocument() {
+                seen = 0;
+                downstream.endDocument();
+            }
+        };
+    }
+}
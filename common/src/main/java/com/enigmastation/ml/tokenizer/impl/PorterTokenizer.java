@@ -16,23 +16,56 @@
 
 package com.enigmastation.ml.tokenizer.impl;
 
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenSink;
+import com.enigmastation.ml.tokenizer.TokenSlice;
 import com.enigmastation.ml.tokenizer.Tokenizer;
+import com.enigmastation.ml.util.CharSequenceReader;
 import org.apache.lucene.analysis.PorterStemFilter;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
 import org.apache.lucene.util.Version;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+/**
+ * This tokenizes with Lucene's StandardTokenizer and stems with the Porter stemmer,
+ * dropping short tokens and ignored words.
+ * <p>
+ * Each thread keeps its own analysis chain, which is reset onto every new document
+ * rather than rebuilt. The ignored words are an immutable snapshot, replaced as a whole
+ * by the mutators, so reads never lock.
+ * <p>
+ * An optional {@link StemCache} sits in front of the stemmer; words it knows skip
+ * stemming entirely.
+ * <p>
+ * Documents longer than the parallel threshold, if one is set, are split at whitespace
+ * and the pieces tokenized in a fork-join pool; the sink still sees every token in
+ * order, on the calling thread.
+ */
 public class PorterTokenizer implements Tokenizer {
+    /* pieces smaller than this are not worth a task of their own */
+    private static final int MIN_CHUNK = 16384;
+
     int minLength = 2;
-    Set<String> ignoredWords = new TreeSet<>();
+    volatile Set<CharSequence> ignoredWords = Collections.emptySet();
+    private volatile StemCache stemCache;
+    private volatile int parallelThreshold;
+    private volatile ForkJoinPool forkJoinPool;
+    private final ThreadLocal<AnalysisChain> chains = ThreadLocal.withInitial(AnalysisChain::new);
 
     public PorterTokenizer() {
         addIgnoredWords("and", "the", "but");
@@ -51,52 +84,300 @@ public class PorterTokenizer implements Tokenizer {
         this.minLength = minLength;
     }
 
+    public StemCache getStemCache() {
+        return stemCache;
+    }
+
+    /**
+     * Sets the cache consulted before stemming; null disables caching.
+     *
+     * @param stemCache the cache, which may be shared between tokenizers
+     */
+    public void setStemCache(StemCache stemCache) {
+        this.stemCache = stemCache;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets the length, in characters, above which a document is tokenized in parallel.
+     * Zero, the default, tokenizes everything on the calling thread. Only the
+     * CharSequence forms are parallel, since a Reader's length is not known up front.
+     *
+     * @param parallelThreshold the length above which documents are split
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public ForkJoinPool getForkJoinPool() {
+        ForkJoinPool pool = forkJoinPool;
+        return pool == null ? ForkJoinPool.commonPool() : pool;
+    }
+
+    /**
+     * Sets the pool that tokenizes the pieces of large documents; null, the default,
+     * means the common pool.
+     *
+     * @param forkJoinPool the pool
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
     public synchronized void addIgnoredWords(String... words) {
-        Set<String> stemmedWords = new TreeSet<>();
         StringBuilder sb = new StringBuilder(words.length * 8);
 
         for (String word : words) {
             sb.append(word).append(" ");
         }
 
-        List<Serializable> tokens = tokenize(sb.toString());
-        for (Object o : tokens) {
-            ignoredWords.add(o.toString());
-        }
+        Set<CharSequence> updated = new TreeSet<>(TokenBuffer.ORDER);
+        updated.addAll(ignoredWords);
+        tokenize(sb, token -> updated.add(token.toString()));
+        ignoredWords = Collections.unmodifiableSet(updated);
     }
 
     public synchronized void clearIgnoredWords() {
-        ignoredWords.clear();
+        ignoredWords = Collections.emptySet();
     }
 
     public Set<String> getIgnoredWords() {
-        return new TreeSet<>(ignoredWords);
+        Set<String> words = new TreeSet<>();
+        for (CharSequence word : ignoredWords) {
+            words.add(word.toString());
+        }
+        return words;
     }
 
     public synchronized void removeIgnoredWord(String word) {
-        ignoredWords.remove(word);
+        Set<CharSequence> updated = new TreeSet<>(TokenBuffer.ORDER);
+        updated.addAll(ignoredWords);
+        updated.remove(word);
+        ignoredWords = Collections.unmodifiableSet(updated);
     }
 
     @Override
     public List<Serializable> tokenize(Serializable source) {
-        List<Serializable> tokens = new ArrayList<>(source.toString().length() / 5);
-        org.apache.lucene.analysis.Tokenizer tokenizer =
-                new StandardTokenizer(Version.LUCENE_34,
-                        new StringReader(source.toString()));
-        CharTermAttribute charTermAttribute = tokenizer.getAttribute(CharTermAttribute.class);
-        PorterStemFilter filter = new PorterStemFilter(tokenizer);
+        String src = source.toString();
+        List<Serializable> tokens = new ArrayList<>(src.length() / 5);
+        tokenize(src, token -> tokens.add(token.toString()));
+        return tokens;
+    }
+
+    @Override
+    public void tokenize(CharSequence source, TokenSink sink) {
+        int threshold = parallelThreshold;
+        if (threshold > 0 && source.length() > threshold) {
+            tokenizeInParallel(source, sink);
+        } else {
+            tokenize(source, sink, minLength, ignoredWords, stemCache);
+        }
+    }
+
+    /**
+     * This tokenizes on the calling thread however long the document is; the parallel
+     * path finishes every piece before the sink sees the first token.
+     */
+    @Override
+    public void tokenizeSequentially(CharSequence source, TokenSink sink) {
+        tokenize(source, sink, minLength, ignoredWords, stemCache);
+    }
+
+    private void tokenize(CharSequence source, TokenSink sink, int minLength, Set<CharSequence> ignored,
+                          StemCache stemCache) {
+        AnalysisChain chain = acquire();
+        try {
+            chain.tokenize(chain.reader.setSource(source), sink, minLength, ignored, stemCache);
+        } catch (IOException e) {
+            throw new RuntimeException("Should not happen: " + e.getMessage(), e);
+        } finally {
+            chain.busy = false;
+        }
+    }
+
+    private void tokenizeInParallel(CharSequence source, TokenSink sink) {
+        ForkJoinPool pool = getForkJoinPool();
+        int grain = Math.max(MIN_CHUNK, source.length() / (pool.getParallelism() * 4));
+        // every piece sees the same settings, even if they change mid-document
+        List<Chunk> chunks = pool.invoke(new ChunkTask(source, 0, source.length(), grain,
+                minLength, ignoredWords, stemCache));
+        TokenSlice slice = new TokenSlice();
+        for (Chunk chunk : chunks) {
+            chunk.replay(sink, slice);
+        }
+    }
+
+    @Override
+    public void tokenize(Reader source, TokenSink sink) throws IOException {
+        AnalysisChain chain = acquire();
         try {
+            chain.tokenize(source, sink, minLength, ignoredWords, stemCache);
+        } finally {
+            chain.busy = false;
+        }
+    }
+
+    /*
+     * A sink that tokenizes again on the same thread would clobber the chain it is being
+     * fed from, so nested calls get a throwaway chain instead.
+     */
+    private AnalysisChain acquire() {
+        AnalysisChain chain = chains.get();
+        if (chain.busy) {
+            chain = new AnalysisChain();
+        }
+        chain.busy = true;
+        return chain;
+    }
+
+    /**
+     * This tokenizes a range of a document, splitting it in two at whitespace while it is
+     * bigger than the grain, and returns the tokens of each piece in document order.
+     */
+    private final class ChunkTask extends RecursiveTask<List<Chunk>> {
+        private final CharSequence source;
+        private final int start;
+        private final int end;
+        private final int grain;
+        private final int minLength;
+        private final Set<CharSequence> ignored;
+        private final StemCache stemCache;
+
+        ChunkTask(CharSequence source, int start, int end, int grain, int minLength,
+                  Set<CharSequence> ignored, StemCache stemCache) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+            this.minLength = minLength;
+            this.ignored = ignored;
+            this.stemCache = stemCache;
+        }
+
+        @Override
+        protected List<Chunk> compute() {
+            int split = start + (end - start) / 2;
+            while (split < end && !Character.isWhitespace(source.charAt(split))) {
+                split++;
+            }
+            if (end - start <= grain || split == end) {
+                Chunk chunk = new Chunk();
+                tokenize(new TokenSlice().set(source, start, end), chunk, minLength, ignored, stemCache);
+                List<Chunk> chunks = new ArrayList<>();
+                chunks.add(chunk);
+                return chunks;
+            }
+            ChunkTask left = new ChunkTask(source, start, split, grain, minLength, ignored, stemCache);
+            left.fork();
+            List<Chunk> right = new ChunkTask(source, split, end, grain, minLength, ignored, stemCache).compute();
+            List<Chunk> chunks = left.join();
+            chunks.addAll(right);
+            return chunks;
+        }
+    }
+
+    /**
+     * This holds the tokens of one piece of a document back to back in a single buffer,
+     * until they can be handed to the caller's sink in order.
+     */
+    private static final class Chunk implements TokenSink {
+        private final TokenBuffer chars = new TokenBuffer(256);
+        private int[] ends = new int[32];
+        private int count;
+
+        @Override
+        public void accept(CharSequence token) {
+            chars.append(token, 0, token.length());
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ends[count++] = chars.length();
+        }
+
+        void replay(TokenSink sink, TokenSlice slice) {
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                sink.accept(slice.set(chars, start, ends[i]));
+                start = ends[i];
+            }
+        }
+    }
+
+    private static final class AnalysisChain {
+        final CharSequenceReader reader = new CharSequenceReader();
+        final org.apache.lucene.analysis.Tokenizer tokenizer = new StandardTokenizer(Version.LUCENE_34, reader);
+        final CharTermAttribute charTermAttribute = tokenizer.getAttribute(CharTermAttribute.class);
+        final StemCacheFilter cacheFilter = new StemCacheFilter(tokenizer);
+        final PorterStemFilter filter = new PorterStemFilter(cacheFilter);
+        final TokenBuffer term = new TokenBuffer();
+        boolean busy;
+
+        void tokenize(Reader source, TokenSink sink, int minLength, Set<CharSequence> ignored,
+                      StemCache stemCache) throws IOException {
+            tokenizer.reset(source);
+            filter.reset();
+            cacheFilter.cache = stemCache;
             while (filter.incrementToken()) {
-                String term = charTermAttribute.toString().toLowerCase();
-                term=term.replace("'", "");
-                term=term.replace("\u2019", "");
-                if (term.length() > minLength && !ignoredWords.contains(term)) {
-                    tokens.add(term);
+                char[] buffer = charTermAttribute.buffer();
+                int length = charTermAttribute.length();
+                if (cacheFilter.missed) {
+                    stemCache.put(cacheFilter.surface.buffer(), 0, cacheFilter.surface.length(), buffer, 0, length);
+                }
+                term.clear();
+                for (int i = 0; i < length; i++) {
+                    char c = buffer[i];
+                    if (c != '\'' && c != '\u2019') {
+                        term.append(Character.toLowerCase(c));
+                    }
+                }
+                if (term.length() > minLength && !ignored.contains(term)) {
+                    sink.accept(term);
                 }
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Should not happen: " + e.getMessage(), e);
+            filter.end();
+            // drop the reference to the caller's text until the next document
+            reader.setSource("");
+        }
+    }
+
+    /**
+     * This replaces cached words with their stems and marks them as keywords, which
+     * PorterStemFilter leaves alone; misses keep their surface form so the stem can be
+     * cached once the stemmer has produced it.
+     */
+    private static final class StemCacheFilter extends TokenFilter {
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private final KeywordAttribute keywordAttribute = addAttribute(KeywordAttribute.class);
+        final TokenBuffer surface = new TokenBuffer();
+        StemCache cache;
+        boolean missed;
+
+        StemCacheFilter(TokenStream input) {
+            super(input);
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            missed = false;
+            keywordAttribute.setKeyword(false);
+            if (cache != null) {
+                char[] stem = cache.get(termAttribute.buffer(), 0, termAttribute.length());
+                if (stem != null) {
+                    termAttribute.copyBuffer(stem, 0, stem.length);
+                    keywordAttribute.setKeyword(true);
+                } else if (termAttribute.length() <= cache.getMaxWordLength()) {
+                    surface.clear();
+                    surface.append(termAttribute, 0, termAttribute.length());
+                    missed = true;
+                }
+            }
+            return true;
         }
-        return tokens;
     }
 }
@@ -16,22 +16,73 @@
 
 package com.enigmastation.ml.tokenizer.impl;
 
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenSink;
+import com.enigmastation.ml.tokenizer.TokenSlice;
 import com.enigmastation.ml.tokenizer.Tokenizer;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
+/**
+ * This splits text along whitespace, and does nothing else to it. Since tokens are never
+ * rewritten, the streaming form hands them over as slices of the source text rather than
+ * copies.
+ */
 public class SimpleTokenizer implements Tokenizer {
     @Override
     public List<Serializable> tokenize(Serializable source) {
         String src = source.toString();
         List<Serializable> tokens = new ArrayList<>(src.length() / 6);
-        Scanner scanner = new Scanner(src);
-        while (scanner.hasNext("\\S*")) {
-            tokens.add(scanner.next("\\S*"));
-        }
+        tokenize(src, token -> tokens.add(token.toString()));
         return tokens;
     }
+
+    @Override
+    public void tokenize(CharSequence source, TokenSink sink) {
+        TokenSlice token = new TokenSlice();
+        int length = source.length();
+        int start = -1;
+        for (int i = 0; i < length; i++) {
+            if (Character.isWhitespace(source.charAt(i))) {
+                if (start != -1) {
+                    sink.accept(token.set(source, start, i));
+                    start = -1;
+                }
+            } else if (start == -1) {
+                start = i;
+            }
+        }
+        if (start != -1) {
+            sink.accept(token.set(source, start, length));
+        }
+    }
+
+    @Override
+    public void tokenize(Reader source, TokenSink sink) throws IOException {
+        TokenBuffer token = new TokenBuffer();
+        char[] buffer = new char[4096];
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (Character.isWhitespace(c)) {
+                    flush(token, sink);
+                } else {
+                    token.append(c);
+                }
+            }
+        }
+        flush(token, sink);
+    }
+
+    private void flush(TokenBuffer token, TokenSink sink) {
+        if (token.length() > 0) {
+            sink.accept(token);
+            token.clear();
+        }
+    }
 }
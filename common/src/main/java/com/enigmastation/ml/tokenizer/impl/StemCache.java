@@ -0,0 +1,272 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This is a bounded, concurrent cache from surface forms to their stems.
+ * <p>
+ * It is a four-way set-associative table: a word can only live in the set its hash
+ * selects, so lookups touch at most four entries and never lock. Every hit bumps the
+ * entry's (saturating) frequency. A miss on a full set ages the set instead of
+ * evicting from it, and a newcomer is only admitted over an entry whose frequency has
+ * decayed to zero, so a flood of one-off junk words cannot push out "the" or "click".
+ * <p>
+ * Memory is capped by an estimate of the bytes each entry holds; words longer than the
+ * configured maximum are never cached.
+ */
+public class StemCache {
+    private static final int WAYS = 4;
+    private static final int MAX_FREQUENCY = 15;
+    /* object header and fields of an entry plus the headers of its two arrays */
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int TYPICAL_ENTRY_SIZE = ENTRY_OVERHEAD + 32;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int setMask;
+    private final long maxBytes;
+    private final int maxWordLength;
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public StemCache() {
+        this(4 * 1024 * 1024);
+    }
+
+    public StemCache(long maxBytes) {
+        this(maxBytes, 24);
+    }
+
+    /**
+     * @param maxBytes      the most memory the cached entries may occupy, estimated
+     * @param maxWordLength the longest surface form worth caching
+     */
+    public StemCache(long maxBytes, int maxWordLength) {
+        if (maxBytes < TYPICAL_ENTRY_SIZE * WAYS) {
+            throw new IllegalArgumentException("maxBytes too small: " + maxBytes);
+        }
+        long sets = Math.min(maxBytes / TYPICAL_ENTRY_SIZE / WAYS, 1 << 24);
+        int setCount = Integer.highestOneBit((int) sets);
+        this.entries = new AtomicReferenceArray<>(setCount * WAYS);
+        this.setMask = setCount - 1;
+        this.maxBytes = maxBytes;
+        this.maxWordLength = maxWordLength;
+    }
+
+    /**
+     * Looks up the stem for a surface form.
+     *
+     * @param surface the buffer holding the surface form
+     * @param offset  where the surface form starts
+     * @param length  how long it is
+     * @return the stem, which callers must not modify, or null if it isn't cached
+     */
+    public char[] get(char[] surface, int offset, int length) {
+        if (length <= maxWordLength) {
+            int hash = hash(surface, offset, length);
+            int base = (hash & setMask) * WAYS;
+            for (int way = 0; way < WAYS; way++) {
+                Entry entry = entries.get(base + way);
+                if (entry != null && entry.matches(hash, surface, offset, length)) {
+                    if (entry.frequency < MAX_FREQUENCY) {
+                        // a lost increment under contention costs nothing but a little accuracy
+                        entry.frequency++;
+                    }
+                    hits.increment();
+                    return entry.stem;
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Offers a surface form and its stem to the cache, which may decline it.
+     */
+    public void put(char[] surface, int offset, int length, char[] stem, int stemOffset, int stemLength) {
+        if (length > maxWordLength) {
+            return;
+        }
+        int hash = hash(surface, offset, length);
+        int base = (hash & setMask) * WAYS;
+        Entry candidate = null;
+        Entry victim = null;
+        int victimWay = -1;
+        for (int way = 0; way < WAYS; way++) {
+            Entry entry = entries.get(base + way);
+            if (entry == null) {
+                if (candidate == null) {
+                    candidate = new Entry(hash, surface, offset, length, stem, stemOffset, stemLength);
+                }
+                if (!reserve(candidate.size())) {
+                    return;
+                }
+                if (entries.compareAndSet(base + way, null, candidate)) {
+                    return;
+                }
+                bytes.addAndGet(-candidate.size());
+                entry = entries.get(base + way);
+            }
+            if (entry == null) {
+                continue;
+            }
+            if (entry.matches(hash, surface, offset, length)) {
+                return;
+            }
+            if (victim == null || entry.frequency < victim.frequency) {
+                victim = entry;
+                victimWay = way;
+            }
+        }
+        if (victim == null) {
+            return;
+        }
+        if (victim.frequency > 0) {
+            for (int way = 0; way < WAYS; way++) {
+                Entry entry = entries.get(base + way);
+                if (entry != null && entry.frequency > 0) {
+                    entry.frequency--;
+                }
+            }
+            return;
+        }
+        if (candidate == null) {
+            candidate = new Entry(hash, surface, offset, length, stem, stemOffset, stemLength);
+        }
+        if (reserve(candidate.size() - victim.size())) {
+            if (entries.compareAndSet(base + victimWay, victim, candidate)) {
+                evictions.increment();
+            } else {
+                bytes.addAndGet(victim.size() - candidate.size());
+            }
+        }
+    }
+
+    private boolean reserve(int size) {
+        long current;
+        do {
+            current = bytes.get();
+            if (size > 0 && current + size > maxBytes) {
+                return false;
+            }
+        } while (!bytes.compareAndSet(current, current + size));
+        return true;
+    }
+
+    private static int hash(char[] chars, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long hitCount = getHitCount();
+        long total = hitCount + getMissCount();
+        return total == 0 ? 0.0 : (1.0 * hitCount) / total;
+    }
+
+    /**
+     * @return the estimated number of bytes held by cached entries
+     */
+    public long getMemoryUsage() {
+        return bytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxWordLength() {
+        return maxWordLength;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < entries.length(); i++) {
+            if (entries.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            Entry entry = entries.getAndSet(i, null);
+            if (entry != null) {
+                bytes.addAndGet(-entry.size());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StemCache{hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", bytes=" + getMemoryUsage() + '}';
+    }
+
+    private static final class Entry {
+        final int hash;
+        final char[] surface;
+        final char[] stem;
+        volatile int frequency;
+
+        Entry(int hash, char[] surface, int offset, int length, char[] stem, int stemOffset, int stemLength) {
+            this.hash = hash;
+            this.surface = new char[length];
+            System.arraycopy(surface, offset, this.surface, 0, length);
+            this.stem = new char[stemLength];
+            System.arraycopy(stem, stemOffset, this.stem, 0, stemLength);
+        }
+
+        boolean matches(int hash, char[] chars, int offset, int length) {
+            if (this.hash != hash || surface.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (surface[i] != chars[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD + 2 * (surface.length + stem.length);
+        }
+    }
+}
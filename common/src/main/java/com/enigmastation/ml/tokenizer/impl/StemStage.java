@@ -0,0 +1,115 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenStage;
+import org.apache.lucene.analysis.PorterStemFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.IOException;
+
+/**
+ * This replaces tokens with their Porter stems. The stemmer expects lowercase input, so a
+ * stage that lowercases normally comes first. An optional {@link StemCache}, which may be
+ * shared with other stages and tokenizers, is consulted before stemming.
+ */
+public class StemStage implements TokenStage {
+    private final StemCache stemCache;
+
+    public StemStage() {
+        this(null);
+    }
+
+    public StemStage(StemCache stemCache) {
+        this.stemCache = stemCache;
+    }
+
+    public StemCache getStemCache() {
+        return stemCache;
+    }
+
+    @Override
+    public Sink open(Sink downstream) {
+        SingleTokenStream input = new SingleTokenStream();
+        PorterStemFilter stemmer = new PorterStemFilter(input);
+        CharTermAttribute stem = stemmer.getAttribute(CharTermAttribute.class);
+        TokenBuffer cached = new TokenBuffer();
+        return new Sink() {
+            @Override
+            public void accept(CharSequence token) {
+                input.token.clear();
+                input.token.append(token, 0, token.length());
+                char[] surface = input.token.buffer();
+                int length = input.token.length();
+                if (stemCache != null) {
+                    char[] hit = stemCache.get(surface, 0, length);
+                    if (hit != null) {
+                        cached.clear();
+                        for (char c : hit) {
+                            cached.append(c);
+                        }
+                        downstream.accept(cached);
+                        return;
+                    }
+                }
+                try {
+                    stemmer.reset();
+                    stemmer.incrementToken();
+                } catch (IOException e) {
+                    throw new RuntimeException("Should not happen: " + e.getMessage(), e);
+                }
+                if (stemCache != null && length <= stemCache.getMaxWordLength()) {
+                    stemCache.put(surface, 0, length, stem.buffer(), 0, stem.length());
+                }
+                downstream.accept(stem);
+            }
+
+            @Override
+            public void endDocument() {
+                downstream.endDocument();
+            }
+        };
+    }
+
+    /**
+     * This feeds the stemmer one token at a time.
+     */
+    private static final class SingleTokenStream extends TokenStream {
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        final TokenBuffer token = new TokenBuffer();
+        private boolean consumed;
+
+        @Override
+        public boolean incrementToken() {
+            if (consumed) {
+                return false;
+            }
+            clearAttributes();
+            termAttribute.copyBuffer(token.buffer(), 0, token.length());
+            consumed = true;
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            consumed = false;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.tokenizer.impl;
+
+import com.enigmastation.ml.tokenizer.TokenBuffer;
+import com.enigmastation.ml.tokenizer.TokenStage;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * This drops stop words. Matching is exact, so a stage that lowercases normally comes
+ * first.
+ */
+public class StopWordStage implements TokenStage {
+    private final Set<CharSequence> stopWords;
+
+    public StopWordStage(String... stopWords) {
+        this(Arrays.asList(stopWords));
+    }
+
+    public StopWordStage(Collection<String> stopWords) {
+        Set<CharSequence> words = new TreeSet<>(TokenBuffer.ORDER);
+        words.addAll(stopWords);
+        this.stopWords = Collections.unmodifiableSet(words);
+    }
+
+    public Set<CharSequence> getStopWords() {
+        return stopWords;
+    }
+
+    @Override
+    public Sink open(Sink downstream) {
+        return new Sink() {
+            @Override
+            public void accept(CharSequence token) {
+                if (!stopWords.contains(token)) {
+                    downstream.accept(token);
+                }
+            }
+
+            @Override
+            public void endDocument() {
+                downstream.endDocument();
+            }
+        };
+    }
+}
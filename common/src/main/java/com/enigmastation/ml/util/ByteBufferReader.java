@@ -0,0 +1,93 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.util;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * This is a Reader that decodes the bytes of a buffer straight into the caller's array,
+ * so a large buffer - a mapped file, for example - never exists as a whole in decoded
+ * form. Malformed input is replaced rather than reported. It reads from the buffer's
+ * position to its limit without moving the buffer's position, it is not thread-safe, and
+ * close() does nothing.
+ */
+public final class ByteBufferReader extends Reader {
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private final CharBuffer pair = CharBuffer.allocate(2);
+    private int pending = -1;
+    private boolean done;
+
+    public ByteBufferReader(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes.duplicate();
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (pending != -1) {
+            cbuf[off] = (char) pending;
+            pending = -1;
+            return 1;
+        }
+        if (done) {
+            return -1;
+        }
+        int count = decode(CharBuffer.wrap(cbuf, off, len));
+        if (count == 0 && !done) {
+            // no room for a surrogate pair; decode it aside and hand it over one half at a time
+            pair.clear();
+            decode(pair);
+            pair.flip();
+            if (pair.hasRemaining()) {
+                cbuf[off] = pair.get();
+                count = 1;
+                if (pair.hasRemaining()) {
+                    pending = pair.get();
+                }
+            }
+        }
+        return count == 0 && done ? -1 : count;
+    }
+
+    private int decode(CharBuffer out) {
+        int start = out.position();
+        if (decoder.decode(bytes, out, true).isUnderflow() && decoder.flush(out).isUnderflow()) {
+            done = true;
+        }
+        return out.position() - start;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
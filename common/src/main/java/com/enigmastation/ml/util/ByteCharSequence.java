@@ -0,0 +1,94 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This is a CharSequence view over the bytes of a buffer in a single-byte charset, which
+ * decodes each character as it is read rather than decoding the whole buffer up front.
+ * Only ISO-8859-1 and US-ASCII are supported; bytes that are not ASCII read as U+FFFD in
+ * the latter, as a replacing decoder would have it.
+ * <p>
+ * The view covers the buffer's position to its limit when it is created, and never moves
+ * the buffer's position.
+ */
+public final class ByteCharSequence implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+    private final boolean ascii;
+
+    public ByteCharSequence(ByteBuffer bytes, Charset charset) {
+        this(bytes, bytes.position(), bytes.remaining(), isAscii(charset));
+    }
+
+    private ByteCharSequence(ByteBuffer bytes, int offset, int length, boolean ascii) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.ascii = ascii;
+    }
+
+    /**
+     * @param charset the charset of some bytes
+     * @return whether the bytes can be viewed through this class
+     */
+    public static boolean supports(Charset charset) {
+        return charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isAscii(Charset charset) {
+        if (!supports(charset)) {
+            throw new IllegalArgumentException("not a supported single-byte charset: " + charset);
+        }
+        return charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        int b = bytes.get(offset + index) & 0xff;
+        return ascii && b > 0x7f ? '\uFFFD' : (char) b;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + ", " + end);
+        }
+        return new ByteCharSequence(bytes, offset + start, end - start, ascii);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package com.enigmastation.ml.util;
+
+import java.io.Reader;
+
+/**
+ * This is a Reader over a CharSequence that can be pointed at a new sequence, so that
+ * one instance can feed a reusable analysis chain document after document without
+ * copying the text. It is not thread-safe, and close() does nothing.
+ */
+public final class CharSequenceReader extends Reader {
+    private CharSequence source = "";
+    private int position;
+    private int mark;
+
+    public CharSequenceReader() {
+    }
+
+    public CharSequenceReader(CharSequence source) {
+        setSource(source);
+    }
+
+    /**
+     * Points this reader at a new sequence, rewinding it.
+     *
+     * @param source the text to read
+     * @return this reader
+     */
+    public CharSequenceReader setSource(CharSequence source) {
+        this.source = source;
+        position = 0;
+        mark = 0;
+        return this;
+    }
+
+    @Override
+    public int read() {
+        return position < source.length() ? source.charAt(position++) : -1;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        int available = source.length() - position;
+        if (available <= 0) {
+            return -1;
+        }
+        int count = Math.min(len, available);
+        if (source instanceof String) {
+            ((String) source).getChars(position, position + count, cbuf, off);
+        } else {
+            for (int i = 0; i < count; i++) {
+                cbuf[off + i] = source.charAt(position + i);
+            }
+        }
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long count = Math.max(0, Math.min(n, source.length() - position));
+        position += count;
+        return count;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mark = position;
+    }
+
+    @Override
+    public void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() {
+    }
+}
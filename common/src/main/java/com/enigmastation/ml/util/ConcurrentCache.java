@@ -0,0 +1,439 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * This is a thread-safe cache with a hard bound on its size, meant to replace
+ * {@link LRUCache} wherever more than one thread is involved.
+ * <p>
+ * Keys are striped across independently locked segments. Each segment admits new entries
+ * into a small LRU window; an entry pushed out of the window only displaces the least
+ * recently used entry of the main area if it has been asked for more often, as estimated
+ * by a count-min sketch of recent accesses (the W-TinyLFU policy). A scan of one-off keys
+ * therefore churns the window and leaves the frequently used entries alone.
+ * <p>
+ * Null keys and values are not allowed; a loader that returns null caches nothing.
+ *
+ * @param <K> Key
+ * @param <V> Value
+ */
+public final class ConcurrentCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 32;
+
+    private final Segment<K, V>[] segments;
+    private final int maximumSize;
+    private final Function<? super K, ? extends V> loader;
+    // the loads under way, which threads missing the same key wait on instead of loading again
+    private final Map<K, CompletableFuture<V>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+
+    public ConcurrentCache(int maximumSize) {
+        this(maximumSize, null);
+    }
+
+    /**
+     * @param maximumSize the most entries the cache will ever hold
+     * @param loader      computes the values of keys {@link #get(Object)} misses; may be null
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentCache(int maximumSize, Function<? super K, ? extends V> loader) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.loader = loader;
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 * MIN_SEGMENT_SIZE <= maximumSize) {
+            count *= 2;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(maximumSize / count + (i < maximumSize % count ? 1 : 0), evictions);
+        }
+    }
+
+    /**
+     * Returns the cached value, loading and caching it on a miss if the cache has a
+     * loader, as {@link #get(Object, Function)} does.
+     *
+     * @param key the key
+     * @return the value, or null if it is neither cached nor loadable
+     */
+    public V get(K key) {
+        return get(key, loader);
+    }
+
+    /**
+     * Returns the cached value, loading and caching it on a miss. The loader runs outside
+     * any segment lock, once per miss: threads that miss a key while it is being loaded
+     * wait for that load and share its value, or its exception, rather than load it
+     * again. The loader must not load the same key through this cache.
+     *
+     * @param key    the key
+     * @param loader computes the value of a missing key, or null to cache nothing; may be
+     *               null, to only look the key up
+     * @return the value, or null if it is neither cached nor loadable
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        V value = segment.get(key, hash);
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        if (loader == null) {
+            return null;
+        }
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            // a load that finished after the miss above has cached its value already
+            value = segment.peek(key);
+            if (value == null) {
+                value = loader.apply(key);
+                loads.increment();
+                if (value != null) {
+                    value = segment.putIfAbsent(key, hash, value);
+                }
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the cached value, or null; this never loads
+     */
+    public V getIfPresent(K key) {
+        int hash = hash(key);
+        V value = segmentFor(hash).get(key, hash);
+        if (value != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int hash = hash(key);
+        segmentFor(hash).put(key, hash, value);
+    }
+
+    public void invalidate(K key) {
+        segmentFor(hash(key)).remove(key);
+    }
+
+    /**
+     * Empties the cache; the statistics are kept.
+     */
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public double getHitRate() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0.0 : (1.0 * hit) / total;
+    }
+
+    private static <V> V await(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private Segment<K, V> segmentFor(int hash) {
+        return segments[(hash >>> 16) & (segments.length - 1)];
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 15);
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final int hash;
+        V value;
+        boolean inMain;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, int hash, V value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    /**
+     * One stripe of the cache: a map onto nodes that sit on one of two LRU lists, the
+     * window or the main area. Each list is a ring around a sentinel, whose next node is
+     * the most recently used and whose previous node is the next to go.
+     */
+    private static final class Segment<K, V> {
+        private final int windowCapacity;
+        private final int mainCapacity;
+        private final LongAdder evictions;
+        private final Map<K, Node<K, V>> map = new HashMap<>();
+        private final Node<K, V> window = sentinel();
+        private final Node<K, V> main = sentinel();
+        private final FrequencySketch sketch;
+        private int windowSize;
+        private int mainSize;
+
+        Segment(int capacity, LongAdder evictions) {
+            this.windowCapacity = Math.max(1, capacity / 100);
+            this.mainCapacity = capacity - windowCapacity;
+            this.evictions = evictions;
+            this.sketch = new FrequencySketch(capacity);
+        }
+
+        synchronized V get(K key, int hash) {
+            sketch.increment(hash);
+            Node<K, V> node = map.get(key);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            linkFirst(node.inMain ? main : window, node);
+            return node.value;
+        }
+
+        /* reads the value without counting it as a use */
+        synchronized V peek(K key) {
+            Node<K, V> node = map.get(key);
+            return node == null ? null : node.value;
+        }
+
+        synchronized void put(K key, int hash, V value) {
+            Node<K, V> node = map.get(key);
+            if (node != null) {
+                node.value = value;
+            } else {
+                insert(key, hash, value);
+            }
+        }
+
+        synchronized V putIfAbsent(K key, int hash, V value) {
+            Node<K, V> node = map.get(key);
+            if (node != null) {
+                return node.value;
+            }
+            insert(key, hash, value);
+            return value;
+        }
+
+        synchronized void remove(K key) {
+            Node<K, V> node = map.remove(key);
+            if (node != null) {
+                unlink(node);
+                if (node.inMain) {
+                    mainSize--;
+                } else {
+                    windowSize--;
+                }
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            window.next = window.prev = window;
+            main.next = main.prev = main;
+            windowSize = 0;
+            mainSize = 0;
+            sketch.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        private void insert(K key, int hash, V value) {
+            Node<K, V> node = new Node<>(key, hash, value);
+            map.put(key, node);
+            linkFirst(window, node);
+            windowSize++;
+            if (windowSize <= windowCapacity) {
+                return;
+            }
+            Node<K, V> candidate = window.prev;
+            unlink(candidate);
+            windowSize--;
+            if (mainSize < mainCapacity) {
+                promote(candidate);
+                mainSize++;
+                return;
+            }
+            Node<K, V> victim = main.prev;
+            if (mainCapacity > 0 && sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                unlink(victim);
+                map.remove(victim.key);
+                promote(candidate);
+            } else {
+                map.remove(candidate.key);
+            }
+            evictions.increment();
+        }
+
+        private void promote(Node<K, V> node) {
+            node.inMain = true;
+            linkFirst(main, node);
+        }
+
+        private static <K, V> Node<K, V> sentinel() {
+            Node<K, V> node = new Node<>(null, 0, null);
+            node.prev = node;
+            node.next = node;
+            return node;
+        }
+
+        private static <K, V> void linkFirst(Node<K, V> list, Node<K, V> node) {
+            node.prev = list;
+            node.next = list.next;
+            list.next.prev = node;
+            list.next = node;
+        }
+
+        private static <K, V> void unlink(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+        }
+    }
+
+    /**
+     * This estimates how often each hash has been seen lately: four rows of counters
+     * that saturate at 15, of which the smallest is the estimate. All counters are halved once
+     * ten times the segment's capacity has been recorded, so old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 2 - 1)) << 1;
+            counters = new byte[width * SEEDS.length];
+            mask = width - 1;
+            sampleSize = Math.max(10 * capacity, 16);
+        }
+
+        void increment(int hash) {
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(hash, row);
+                if (counters[index] < 15) {
+                    counters[index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, counters[index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        void clear() {
+            Arrays.fill(counters, (byte) 0);
+            additions = 0;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % SEEDS.length];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
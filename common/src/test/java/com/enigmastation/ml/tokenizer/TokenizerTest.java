@@ -16,14 +16,41 @@
 
 package com.enigmastation.ml.tokenizer;
 
+import com.enigmastation.ml.tokenizer.impl.DedupeStage;
+import com.enigmastation.ml.tokenizer.impl.HashingTokenizer;
+import com.enigmastation.ml.tokenizer.impl.LengthStage;
+import com.enigmastation.ml.tokenizer.impl.LimitingTokenizer;
+import com.enigmastation.ml.tokenizer.impl.LowercaseStage;
+import com.enigmastation.ml.tokenizer.impl.NGramStage;
 import com.enigmastation.ml.tokenizer.impl.PorterTokenizer;
 import com.enigmastation.ml.tokenizer.impl.SimpleTokenizer;
+import com.enigmastation.ml.tokenizer.impl.StemCache;
+import com.enigmastation.ml.tokenizer.impl.StemStage;
+import com.enigmastation.ml.tokenizer.impl.StopWordStage;
+import com.enigmastation.ml.util.ByteBufferReader;
 import org.testng.annotations.Test;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 public class TokenizerTest {
     @Test
@@ -40,4 +67,291 @@ public class TokenizerTest {
         System.out.println(porterTokenizer.tokenize("the quick brown fox jumps over the lazy dog's tail"));
         assertEquals(porterTokenizer.tokenize("the quick brown fox jumps over the lazy dog's tail").size(), 8);
     }
+
+    @Test
+    public void testStreamingMatchesList() throws IOException {
+        String text = "  the quick brown fox\tjumps over the lazy dog's tail\n";
+        for (Tokenizer tokenizer : new Tokenizer[]{new SimpleTokenizer(), new PorterTokenizer()}) {
+            List<Serializable> expected = tokenizer.tokenize(text);
+            List<String> streamed = new ArrayList<>();
+            tokenizer.tokenize((CharSequence) text, token -> streamed.add(token.toString()));
+            assertEquals(streamed, expected);
+            List<String> read = new ArrayList<>();
+            tokenizer.tokenize(new StringReader(text), token -> read.add(token.toString()));
+            assertEquals(read, expected);
+        }
+    }
+
+    @Test
+    public void testPorterTokenizerReuseAcrossThreads() throws Exception {
+        PorterTokenizer tokenizer = new PorterTokenizer();
+        String[] documents = {
+                "the quick brown fox jumps over the lazy dog's tail",
+                "Now is the time for all good men to come to the aid of their finalizing country.",
+                "make quick money in the online casino"
+        };
+        List<List<Serializable>> expected = new ArrayList<>();
+        for (String document : documents) {
+            expected.add(tokenizer.tokenize(document));
+        }
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final int index = i % documents.length;
+                results.add(service.submit(() -> tokenizer.tokenize(documents[index]).equals(expected.get(index))));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            service.shutdown();
+        }
+        tokenizer.addIgnoredWords("quick");
+        assertEquals(tokenizer.tokenize(documents[2]).size(), expected.get(2).size() - 1);
+    }
+
+    @Test
+    public void testStemCache() {
+        String text = "Now is the time for all good men to come to the aid of their finalizing country.";
+        PorterTokenizer uncached = new PorterTokenizer();
+        PorterTokenizer cached = new PorterTokenizer();
+        StemCache cache = new StemCache(4096);
+        cached.setStemCache(cache);
+        List<Serializable> expected = uncached.tokenize(text);
+        assertEquals(cached.tokenize(text), expected);
+        long hits = cache.getHitCount();
+        assertEquals(cached.tokenize(text), expected);
+        assertTrue(cache.getHitCount() - hits >= expected.size());
+        for (int i = 0; i < 1000; i++) {
+            cached.tokenize("junk" + i + " finalizing");
+        }
+        assertTrue(cache.getMemoryUsage() <= cache.getMaxBytes());
+        assertEquals(cached.tokenize(text), expected);
+    }
+
+    @Test
+    public void testTermDictionary() throws Exception {
+        TermDictionary dictionary = new TermDictionary(16);
+        int[] ids = new SimpleTokenizer().tokenizeToIds("a b c a b d", dictionary);
+        assertEquals(ids, new int[]{0, 1, 2, 0, 1, 3});
+        assertEquals(dictionary.term(3), "d");
+        assertEquals(dictionary.lookup(new StringBuilder("c")), 2);
+        assertEquals(dictionary.lookup("e"), -1);
+
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(service.submit(() -> {
+                    int[] assigned = new int[5000];
+                    for (int i = 0; i < assigned.length; i++) {
+                        assigned[i] = dictionary.intern("term" + i);
+                    }
+                    return assigned;
+                }));
+            }
+            int[] first = results.get(0).get();
+            for (Future<int[]> result : results) {
+                assertEquals(result.get(), first);
+            }
+            assertEquals(dictionary.size(), 5004);
+            for (int i = 0; i < first.length; i++) {
+                assertEquals(dictionary.term(first[i]), "term" + i);
+            }
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testHashingTokenizer() {
+        HashingTokenizer unigrams = new HashingTokenizer(new SimpleTokenizer(), 10);
+        List<Serializable> features = unigrams.tokenize("the quick brown fox the");
+        assertEquals(features.size(), 5);
+        assertEquals(features.get(0), features.get(4));
+        assertEquals(features, unigrams.tokenize("the quick brown fox the"));
+        for (Serializable feature : features) {
+            assertTrue((Integer) feature >= 0 && (Integer) feature < unigrams.getDimension());
+        }
+
+        HashingTokenizer trigrams = new HashingTokenizer(new SimpleTokenizer(), 10, 3, true);
+        List<Serializable> signed = trigrams.tokenize("the quick brown fox the");
+        // five tokens, four bigrams, three trigrams
+        assertEquals(signed.size(), 12);
+        for (Serializable feature : signed) {
+            int bucket = HashingTokenizer.bucket((Integer) feature);
+            assertTrue(bucket >= 0 && bucket < trigrams.getDimension());
+        }
+        List<String> streamed = new ArrayList<>();
+        trigrams.tokenize("the quick brown fox the", token -> streamed.add(token.toString()));
+        assertEquals(streamed.size(), signed.size());
+        assertEquals(streamed.get(11), signed.get(11).toString());
+    }
+
+    @Test
+    public void testBufferTokenization() throws IOException {
+        String text = "The quick brown fox na\u00efvely jumps \ud83e\udd8a over the lazy dog";
+        for (Tokenizer tokenizer : new Tokenizer[]{new SimpleTokenizer(), new PorterTokenizer()}) {
+            List<String> expected = new ArrayList<>();
+            tokenizer.tokenize(text, token -> expected.add(token.toString()));
+
+            CharBuffer chars = CharBuffer.wrap("xx " + text + " yy", 3, 3 + text.length());
+            List<String> fromChars = new ArrayList<>();
+            tokenizer.tokenize(chars, token -> fromChars.add(token.toString()));
+            assertEquals(fromChars, expected);
+            assertEquals(chars.position(), 3);
+
+            Path file = Files.createTempFile("tokenizer", ".txt");
+            try {
+                Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    List<String> fromUtf8 = new ArrayList<>();
+                    tokenizer.tokenize(mapped, StandardCharsets.UTF_8, token -> fromUtf8.add(token.toString()));
+                    assertEquals(fromUtf8, expected);
+                    assertEquals(mapped.position(), 0);
+                }
+            } finally {
+                Files.delete(file);
+            }
+
+            String latin = "caf\u00e9 cr\u00e8me br\u00fbl\u00e9e";
+            List<String> latinExpected = new ArrayList<>();
+            tokenizer.tokenize(latin, token -> latinExpected.add(token.toString()));
+            List<String> fromLatin = new ArrayList<>();
+            tokenizer.tokenize(ByteBuffer.wrap(latin.getBytes(StandardCharsets.ISO_8859_1)),
+                    StandardCharsets.ISO_8859_1, token -> fromLatin.add(token.toString()));
+            assertEquals(fromLatin, latinExpected);
+        }
+
+        // one char at a time, a surrogate pair has to come out in two reads
+        ByteBufferReader reader = new ByteBufferReader(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8);
+        StringBuilder decoded = new StringBuilder();
+        char[] one = new char[1];
+        while (reader.read(one, 0, 1) != -1) {
+            decoded.append(one[0]);
+        }
+        assertEquals(decoded.toString(), text);
+    }
+
+    @Test
+    public void testParallelTokenization() {
+        StringBuilder sb = new StringBuilder();
+        String[] words = {"running", "jumps", "the", "quickly", "foxes", "and", "lazier", "dog's", "ponies", "caresses"};
+        for (int i = 0; i < 40000; i++) {
+            sb.append(words[i % words.length]).append(i % 7 == 0 ? "\n" : " ").append(i).append(' ');
+        }
+        String text = sb.toString();
+
+        PorterTokenizer tokenizer = new PorterTokenizer();
+        List<String> expected = new ArrayList<>();
+        tokenizer.tokenize(text, token -> expected.add(token.toString()));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            tokenizer.setParallelThreshold(1000);
+            tokenizer.setForkJoinPool(pool);
+            List<String> parallel = new ArrayList<>();
+            tokenizer.tokenize(text, token -> parallel.add(token.toString()));
+            assertEquals(parallel, expected);
+
+            tokenizer.setStemCache(new StemCache());
+            parallel.clear();
+            tokenizer.tokenize(text, token -> parallel.add(token.toString()));
+            assertEquals(parallel, expected);
+            // short documents stay on the calling thread
+            assertEquals(tokenizer.tokenize("quick foxes"), new PorterTokenizer().tokenize("quick foxes"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testTokenPipeline() {
+        String text = "The quick brown Foxes jumped over the lazy dogs and ran";
+        TokenPipeline porter = new TokenPipeline(new SimpleTokenizer(),
+                new LowercaseStage(), new StopWordStage("and", "the", "but"),
+                new StemStage(new StemCache()), new LengthStage(3));
+        assertEquals(porter.tokenize(text), new PorterTokenizer().tokenize(text));
+        assertEquals(porter.tokenize(text), new PorterTokenizer().tokenize(text));
+
+        TokenPipeline bigrams = new TokenPipeline(new SimpleTokenizer(), new NGramStage(2), new DedupeStage());
+        assertEquals(bigrams.tokenizeAll(Arrays.asList("a b a b", "", "b c")), Arrays.asList(
+                Arrays.asList("a", "b", "a b", "b a"),
+                new ArrayList<>(),
+                Arrays.asList("b", "c", "b c")));
+
+        List<String> batch = new ArrayList<>();
+        new TokenPipeline(new SimpleTokenizer(), new NGramStage(3)).tokenizeAll(Arrays.asList("x y z", "w"),
+                (document, token) -> batch.add(document + ":" + token));
+        assertEquals(batch, Arrays.asList("0:x", "0:y", "0:x y", "0:z", "0:y z", "0:x y z", "1:w"));
+    }
+
+    @Test
+    public void testLimitingTokenizer() throws IOException {
+        LimitingTokenizer tokens = new LimitingTokenizer(new SimpleTokenizer(), 0, 3);
+        List<String> out = new ArrayList<>();
+        LimitingTokenizer.Result result = tokens.tokenizeWithLimits("a b c d e", token -> out.add(token.toString()));
+        assertEquals(out, Arrays.asList("a", "b", "c"));
+        assertTrue(result.isTruncated());
+        assertEquals(result.getTokens(), 3);
+        assertTrue(!tokens.tokenizeWithLimits("a b c", token -> { }).isTruncated());
+        assertEquals(tokens.getTruncatedCount(), 1);
+
+        // the character cut backs up to whitespace rather than splitting "brown", from a Reader too
+        LimitingTokenizer characters = new LimitingTokenizer(new SimpleTokenizer(), 13, 0);
+        assertEquals(characters.tokenize("the quick brown fox"), Arrays.asList("the", "quick"));
+        out.clear();
+        characters.tokenize(new StringReader("the quick brown fox"), token -> out.add(token.toString()));
+        assertEquals(out, Arrays.asList("the", "quick"));
+        assertEquals(characters.getTruncatedCount(), 2);
+        out.clear();
+        characters.tokenize(new StringReader("the quick bro fox"), token -> out.add(token.toString()));
+        assertEquals(out, Arrays.asList("the", "quick", "bro"));
+        out.clear();
+        characters.tokenize(new StringReader("the quick bro"), token -> out.add(token.toString()));
+        assertEquals(out, Arrays.asList("the", "quick", "bro"));
+        assertEquals(characters.getTruncatedCount(), 3);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("token").append(i).append(' ');
+        }
+        LimitingTokenizer sampled = new LimitingTokenizer(new SimpleTokenizer(), 0, 0, 0.25);
+        List<Serializable> kept = sampled.tokenize(sb.toString());
+        assertTrue(kept.size() > 2000 && kept.size() < 3000, "kept " + kept.size());
+        assertEquals(sampled.tokenize(sb.toString()), kept);
+        assertEquals(sampled.getTruncatedCount(), 0);
+
+        // a limit on the stemmed tokens of a long document stops the work, so the parallel path stays idle
+        PorterTokenizer porter = new PorterTokenizer();
+        porter.setParallelThreshold(1000);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            porter.setForkJoinPool(pool);
+            assertEquals(new LimitingTokenizer(porter, 0, 5).tokenize(sb.toString()).size(), 5);
+            assertEquals(pool.getPoolSize(), 0);
+            assertEquals(new LimitingTokenizer(porter, 0, 0).tokenize(sb.toString()).size(), 10000);
+            assertTrue(pool.getPoolSize() > 0);
+        } finally {
+            pool.shutdown();
+        }
+
+        // so do the tokenizers that wrap it
+        PorterTokenizer wrapped = new PorterTokenizer();
+        wrapped.setParallelThreshold(1000);
+        ForkJoinPool idle = new ForkJoinPool(2);
+        try {
+            wrapped.setForkJoinPool(idle);
+            assertEquals(new LimitingTokenizer(new TokenPipeline(wrapped, new LowercaseStage()), 0, 5)
+                    .tokenize(sb.toString()).size(), 5);
+            assertEquals(new LimitingTokenizer(new HashingTokenizer(wrapped, 16), 0, 5)
+                    .tokenize(sb.toString()).size(), 5);
+            assertEquals(idle.getPoolSize(), 0);
+        } finally {
+            idle.shutdown();
+        }
+    }
 }
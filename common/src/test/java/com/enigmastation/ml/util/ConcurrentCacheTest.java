@@ -0,0 +1,155 @@
+/*
+ Copyright 2012 Joseph B. Ottinger
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package com.enigmastation.ml.util;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class ConcurrentCacheTest {
+    @Test
+    public void testBoundAndStatistics() {
+        ConcurrentCache<Integer, String> cache = new ConcurrentCache<>(100);
+        assertNull(cache.get(1));
+        cache.put(1, "one");
+        assertEquals(cache.get(1), "one");
+        assertEquals(cache.getHitCount(), 1);
+        assertEquals(cache.getMissCount(), 1);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, Integer.toString(i));
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(cache.size(), 100);
+        assertEquals(cache.getEvictionCount(), 10000 - 100);
+        cache.invalidate(9999);
+        cache.clear();
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testScanResistance() {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<>(200);
+        // a hundred hot keys, each reused after two hundred one-off keys: plain LRU keeps none of them
+        int scanned = 1000;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 100; i++) {
+                lookup(cache, i);
+                lookup(cache, scanned++);
+                lookup(cache, scanned++);
+            }
+        }
+        int survivors = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.getIfPresent(i) != null) {
+                survivors++;
+            }
+        }
+        assertTrue(survivors >= 90, "only " + survivors + " hot keys survived the scan");
+    }
+
+    private void lookup(ConcurrentCache<Integer, Integer> cache, int key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    @Test
+    public void testLoaderAcrossThreads() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<>(1000, key -> {
+            calls.incrementAndGet();
+            return key * 2;
+        });
+        ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(service.submit(() -> {
+                    for (int i = 0; i < 50000; i++) {
+                        int key = i % 1500;
+                        assertEquals((int) cache.get(key), key * 2);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            service.shutdown();
+        }
+        assertTrue(cache.size() <= 1000);
+        assertEquals(cache.getLoadCount(), calls.get());
+        assertEquals(cache.getHitCount() + cache.getMissCount(), 200000);
+    }
+
+    @Test
+    public void testOneLoadPerMiss() throws Exception {
+        ConcurrentCache<String, Integer> cache = new ConcurrentCache<>(100);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(service.submit(() -> {
+                    start.await();
+                    return cache.get("key", key -> {
+                        calls.incrementAndGet();
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return 42;
+                    });
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> future : futures) {
+                assertEquals((int) future.get(), 42);
+            }
+        } finally {
+            service.shutdown();
+        }
+        assertEquals(calls.get(), 1);
+        assertEquals(cache.getLoadCount(), 1);
+
+        // nothing is cached for a null load, and a failed load fails its caller
+        assertNull(cache.get("missing", key -> null));
+        assertNull(cache.getIfPresent("missing"));
+        try {
+            cache.get("broken", key -> {
+                throw new IllegalStateException("no value");
+            });
+            assertTrue(false, "the loader's exception was swallowed");
+        } catch (IllegalStateException expected) {
+            assertEquals(expected.getMessage(), "no value");
+        }
+        assertEquals((int) cache.get("broken", key -> 7), 7);
+    }
+}
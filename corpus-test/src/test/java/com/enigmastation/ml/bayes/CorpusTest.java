@@ -16,7 +16,10 @@
 
 package com.enigmastation.ml.bayes;
 
+import com.enigmastation.ml.bayes.impl.CountMinClassifierDataFactory;
+import com.enigmastation.ml.bayes.impl.CountMinFeatureStore;
 import com.enigmastation.ml.bayes.impl.FisherClassifierImpl;
+import com.enigmastation.ml.tokenizer.impl.PorterTokenizer;
 import com.ice.tar.TarArchive;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.testng.annotations.Test;
@@ -24,12 +27,16 @@ import org.testng.annotations.Test;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static org.testng.Assert.assertTrue;
+
 public class CorpusTest {
     int hits;
     int misses;
@@ -39,30 +46,7 @@ public class CorpusTest {
     public void testCorpus() throws URISyntaxException, IOException, InterruptedException {
         final Classifier classifier = new FisherClassifierImpl();
         ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        // first we expand the test dataset
-        URL resource = this.getClass().getResource("/src/test/resources/publiccorpus");
-        File resourceFile = new File(resource.toURI());
-        String[] dataFileNames = resourceFile.list(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".bz2");
-            }
-        });
-
-        List<String> directories = new ArrayList<String>();
-        final List<File> trainingFiles = new ArrayList<>();
-
-        for (String fileName : dataFileNames) {
-            directories.add(expandFile(fileName));
-        }
-        // collect every name, plus mark to delete on exit
-        for (String inputDirectory : directories) {
-            URL url = this.getClass().getResource(inputDirectory);
-            File[] dataFiles = new File(url.toURI()).listFiles();
-            for (File f : dataFiles) {
-                handleFiles(f, trainingFiles);
-            }
-        }
+        final List<File> trainingFiles = corpusFiles();
         long startTime = System.currentTimeMillis();
         final int[] counter = {0};
         final int[] marker = {0};
@@ -118,6 +102,78 @@ public class CorpusTest {
         System.out.printf("Training took %d ms%n", (endTime - startTime));
     }
 
+    /**
+     * Trains an exact and a count-min classifier on the same seven in ten messages, and
+     * compares their accuracy on the other three.
+     */
+    @Test(groups = {"fulltest"})
+    public void testCountMinAccuracy() throws URISyntaxException, IOException {
+        List<File> files = corpusFiles();
+        List<TrainingDocument> training = new ArrayList<>();
+        List<String> testing = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            String data = readFile(files.get(i));
+            String label = files.get(i).getName().contains("ham") ? "ham" : "spam";
+            if (i % 10 > 2) {
+                training.add(new TrainingDocument(data, label));
+            } else {
+                testing.add(data);
+                labels.add(label);
+            }
+        }
+        double exact = accuracy(new FisherClassifierImpl(), training, testing, labels);
+        CountMinClassifierDataFactory factory = new CountMinClassifierDataFactory(0.0001, 0.01);
+        FisherClassifierImpl sketched = new FisherClassifierImpl(new PorterTokenizer(), factory);
+        double approximate = accuracy(sketched, training, testing, labels);
+        CountMinFeatureStore store = (CountMinFeatureStore) factory.buildFeatureStore();
+        System.out.printf("Exact accuracy: %f%%; count-min accuracy: %f%% with %d by %d sketches%n",
+                exact, approximate, store.getDepth(), store.getWidth());
+        assertTrue(approximate >= exact - 1.0,
+                "count-min accuracy " + approximate + "% is not within a point of " + exact + "%");
+    }
+
+    private double accuracy(Classifier classifier, List<TrainingDocument> training,
+                            List<String> testing, List<String> labels) {
+        classifier.trainAll(training);
+        List<Serializable> classifications = classifier.classifyAll(testing);
+        int correct = 0;
+        for (int i = 0; i < classifications.size(); i++) {
+            if (classifications.get(i).equals(labels.get(i))) {
+                correct++;
+            }
+        }
+        return (correct * 100.0) / classifications.size();
+    }
+
+    private List<File> corpusFiles() throws URISyntaxException, IOException {
+        // first we expand the test dataset
+        URL resource = this.getClass().getResource("/src/test/resources/publiccorpus");
+        File resourceFile = new File(resource.toURI());
+        String[] dataFileNames = resourceFile.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".bz2");
+            }
+        });
+
+        List<String> directories = new ArrayList<String>();
+        final List<File> trainingFiles = new ArrayList<>();
+
+        for (String fileName : dataFileNames) {
+            directories.add(expandFile(fileName));
+        }
+        // collect every name, plus mark to delete on exit
+        for (String inputDirectory : directories) {
+            URL url = this.getClass().getResource(inputDirectory);
+            File[] dataFiles = new File(url.toURI()).listFiles();
+            for (File f : dataFiles) {
+                handleFiles(f, trainingFiles);
+            }
+        }
+        return trainingFiles;
+    }
+
     private void handleFiles(File f, List<File> trainingFiles) {
         if (f.isDirectory()) {
             File[] directory = f.listFiles();
@@ -147,16 +203,8 @@ public class CorpusTest {
     }
 
     private String readFile(File file) throws IOException {
-        FileReader fr = new FileReader(file);
-        BufferedReader br = new BufferedReader(fr, 16384);
-        StringBuilder sb = new StringBuilder();
-        String s;
-        while ((s = br.readLine()) != null) {
-            sb.append(s);
-        }
-        br.close();
-        fr.close();
-        return sb.toString();
+        // one decode straight from the bytes, rather than line by line through a StringBuilder
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
     }
 
     private String expandFile(String fileName)
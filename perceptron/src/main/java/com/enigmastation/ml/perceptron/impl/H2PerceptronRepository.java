@@ -17,7 +17,7 @@
 package com.enigmastation.ml.perceptron.impl;
 
 import com.enigmastation.ml.perceptron.RelationalPerceptronRepository;
-import com.enigmastation.ml.util.LRUCache;
+import com.enigmastation.ml.util.ConcurrentCache;
 import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
@@ -37,12 +37,12 @@ import java.util.stream.Collectors;
  */
 public class H2PerceptronRepository implements RelationalPerceptronRepository {
     private final static int DEFAULT_ID = -1;
-    private final Map<Layer, LRUCache<String, Integer>> nodeIdCache = new HashMap<>();
+    private final Map<Layer, ConcurrentCache<String, Integer>> nodeIdCache = new HashMap<>();
 
     public H2PerceptronRepository() {
         buildTables();
-        nodeIdCache.put(Layer.FROM, new LRUCache<>(150));
-        nodeIdCache.put(Layer.TO, new LRUCache<>(10));
+        nodeIdCache.put(Layer.FROM, new ConcurrentCache<>(150));
+        nodeIdCache.put(Layer.TO, new ConcurrentCache<>(10));
     }
 
     public void clear() {
@@ -131,39 +131,48 @@ public class H2PerceptronRepository implements RelationalPerceptronRepository {
     }
 
     /*
-    * This could use a cache *so* bad... assuming it's called a whole lot for the same terms.
+    * Input and output nodes are looked up through a cache, which loads each missing node
+    * once however many threads ask for it; hidden nodes are not cached.
     */
     @Override
     public int getNodeId(Object token, Layer layer, NodeCreation creation) {
-        int id = DEFAULT_ID;
-        // check the cache! -- but we don't cache hidden nodes.
-        if (!layer.equals(Layer.HIDDEN)) {
-            Integer nodeId = nodeIdCache.get(layer).get(token.toString());
-            if (nodeId != null) {
-                id = nodeId;
+        if (layer.equals(Layer.HIDDEN)) {
+            return findNode(token, layer, creation);
+        }
+        while (true) {
+            // a missing node is not cached, or it would hide the node once it is created
+            Integer id = nodeIdCache.get(layer).get(token.toString(), key -> {
+                int found = findNode(token, layer, creation);
+                return found == DEFAULT_ID ? null : found;
+            });
+            if (id != null) {
+                return id;
+            }
+            // this may have shared the empty result of a load that was not allowed to create
+            if (creation != NodeCreation.CREATE) {
+                return DEFAULT_ID;
             }
         }
-        if (id == DEFAULT_ID) {
-            try (Connection conn = getConnection()) {
-                try (PreparedStatement ps = conn.prepareStatement("select id from node where create_key=? and layer=?")) {
-                    ps.setString(1, token.toString());
-                    ps.setInt(2, layer.ordinal());
-                    try (ResultSet rs = ps.executeQuery()) {
-                        if (rs.next()) {
-                            id = rs.getInt(1);
-                        } else {
-                            if (creation == NodeCreation.CREATE) {
-                                id = createNode(token, layer);
-                            }
+    }
+
+    private int findNode(Object token, Layer layer, NodeCreation creation) {
+        int id = DEFAULT_ID;
+        try (Connection conn = getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement("select id from node where create_key=? and layer=?")) {
+                ps.setString(1, token.toString());
+                ps.setInt(2, layer.ordinal());
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        id = rs.getInt(1);
+                    } else {
+                        if (creation == NodeCreation.CREATE) {
+                            id = createNode(token, layer);
                         }
                     }
                 }
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
             }
-        }
-        if (!layer.equals(Layer.HIDDEN)) {
-            nodeIdCache.get(layer).put(token.toString(), id);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
         }
         return id;
     }
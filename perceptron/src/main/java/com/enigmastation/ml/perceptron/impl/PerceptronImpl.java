@@ -144,7 +144,7 @@ public class PerceptronImpl implements Perceptron {
     @Override
     public Queue<PerceptronResult> getResults(Object corpus, List<?> targets) {
         // ugh
-        return getResults(tokenizer.tokenize(corpus.toString()), targets);
+        return getResults(tokens(corpus), targets);
     }
 
     @Override
@@ -159,7 +159,7 @@ public class PerceptronImpl implements Perceptron {
 
     @Override
     public Object getFirstResult(Object corpus, List<?> targets) {
-        return getFirstResult(tokenizer.tokenize(corpus.toString()), targets);
+        return getFirstResult(tokens(corpus), targets);
     }
 
     @Override
@@ -179,7 +179,7 @@ public class PerceptronImpl implements Perceptron {
 
     @Override
     public void train(Object corpus, List<?> targets, Object selected) {
-        train(tokenizer.tokenize(corpus.toString()), targets, selected);
+        train(tokens(corpus), targets, selected);
     }
 
     @Override
@@ -207,6 +207,16 @@ public class PerceptronImpl implements Perceptron {
         this.tokenizer = tokenizer;
     }
 
+    /**
+     * The perceptron's input layer is the token list itself, so the tokens are streamed
+     * straight into it rather than through the tokenizer's own list.
+     */
+    private List<String> tokens(Object corpus) {
+        List<String> tokens = new ArrayList<>();
+        tokenizer.tokenize(corpus.toString(), token -> tokens.add(token.toString()));
+        return tokens;
+    }
+
     private void updateStrengths(PerceptronState state) {
         for (Integer i : state.getWordIds()) {
             for (Integer j : state.getHiddenIds()) {